@@ -0,0 +1,334 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk-backed storage for file attachments, and the binary frame protocol
+ * used to move them over a WebSocket.
+ *
+ * Every binary frame starts with a 17-byte header:
+ *   byte  kind     (1 = upload chunk, 2 = download chunk)
+ *   long  id       (upload id, or attachment id)
+ *   long  offset   (where in the file the data goes / came from)
+ * followed by the data. Numbers are big-endian.
+ *
+ * Upload chunks are written straight into a spool file at their offset, so
+ * an upload never sits in the heap, and one that was cut off can be resumed
+ * from the last byte we got. Downloads are read from disk one chunk at a
+ * time, and the next chunk is only sent once the connection has drained the
+ * last one, so a big file never queues up in memory or in front of chat.
+ *
+ * Configuration (environment variables):
+ *   CHAT_ATTACHMENT_DIR       where files are kept (default "attachments")
+ *   CHAT_ATTACHMENT_MAX_MB    largest accepted attachment (default 100)
+ *   CHAT_ATTACHMENT_THREADS   threads for hashing and downloads (default 2)
+ */
+public class AttachmentStore {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentStore.class);
+
+    static final byte UPLOAD_CHUNK = 1;
+    static final byte DOWNLOAD_CHUNK = 2;
+    static final int HEADER_SIZE = 1 + 8 + 8;
+
+    // What we ask clients to send, and what we send back
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int MAX_UPLOADS_PER_USER = 4;
+    private static final long UPLOAD_IDLE_TIMEOUT_MS = TimeUnit.HOURS.toMillis(1);
+
+    // How long to wait before checking again whether a slow client has drained its queue
+    private static final long DRAIN_POLL_MS = 5;
+
+    private final Path spoolDir;
+    private final Path filesDir;
+    private final long maxBytes;
+
+    // upload id -> upload in progress (survives reconnects, so uploads can resume)
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService transfers;
+
+    // One direct buffer per transfer thread: chunks are read from disk without touching the heap
+    private final ThreadLocal<ByteBuffer> chunkBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HEADER_SIZE + CHUNK_SIZE));
+
+    public AttachmentStore() throws IOException {
+        Path baseDir = Paths.get(DataSourceRouter.env("CHAT_ATTACHMENT_DIR", "attachments"));
+        this.spoolDir = Files.createDirectories(baseDir.resolve("spool"));
+        this.filesDir = Files.createDirectories(baseDir.resolve("files"));
+        this.maxBytes = Long.parseLong(DataSourceRouter.env("CHAT_ATTACHMENT_MAX_MB", "100")) * 1024 * 1024;
+
+        int threads = Integer.parseInt(DataSourceRouter.env("CHAT_ATTACHMENT_THREADS", "2"));
+        transfers = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "attachment-transfer");
+            t.setDaemon(true);
+            return t;
+        });
+        transfers.scheduleWithFixedDelay(this::expireIdleUploads, 10, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * An upload in progress, spooled to disk.
+     */
+    static final class Upload {
+        final long uploadId;
+        final int uploaderId;
+        final int receiverId;
+        final String fileName;
+        final long size;
+        final String sha256;
+        final Path spoolFile;
+        final FileChannel channel;
+        long received; // Guarded by 'this'
+        volatile long lastActivity = System.currentTimeMillis();
+
+        Upload(long uploadId, int uploaderId, int receiverId, String fileName, long size, String sha256,
+               Path spoolFile, FileChannel channel) {
+            this.uploadId = uploadId;
+            this.uploaderId = uploaderId;
+            this.receiverId = receiverId;
+            this.fileName = fileName;
+            this.size = size;
+            this.sha256 = sha256;
+            this.spoolFile = spoolFile;
+            this.channel = channel;
+        }
+
+        String uploadIdHex() {
+            return Long.toHexString(uploadId);
+        }
+
+        synchronized long getReceived() {
+            return received;
+        }
+    }
+
+    // --- Uploads ---
+
+    /**
+     * Starts a new upload.
+     * @throws IllegalArgumentException If the request isn't acceptable (message is for the client).
+     */
+    public Upload begin(int uploaderId, int receiverId, String fileName, long size, String sha256) throws IOException {
+        if (size <= 0 || size > maxBytes) {
+            throw new IllegalArgumentException("Attachments must be between 1 byte and " + (maxBytes / (1024 * 1024)) + " MB.");
+        }
+        if (fileName.isEmpty() || fileName.length() > 255) {
+            throw new IllegalArgumentException("Invalid file name.");
+        }
+        if (!sha256.matches("[0-9a-fA-F]{64}")) {
+            throw new IllegalArgumentException("sha256 must be 64 hex digits.");
+        }
+        long inProgress = uploads.values().stream().filter(u -> u.uploaderId == uploaderId).count();
+        if (inProgress >= MAX_UPLOADS_PER_USER) {
+            throw new IllegalArgumentException("Too many uploads in progress.");
+        }
+
+        long uploadId = random.nextLong() & Long.MAX_VALUE;
+        Path spoolFile = spoolDir.resolve(Long.toHexString(uploadId) + ".part");
+        FileChannel channel = FileChannel.open(spoolFile,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        Upload upload = new Upload(uploadId, uploaderId, receiverId, fileName, size, sha256.toLowerCase(), spoolFile, channel);
+        uploads.put(uploadId, upload);
+        return upload;
+    }
+
+    /**
+     * Finds an upload the user started earlier, to carry on from where it stopped.
+     * @return The upload, or null if there's no such upload for this user.
+     */
+    public Upload resume(String uploadIdHex, int uploaderId) {
+        Upload upload;
+        try {
+            upload = uploads.get(Long.parseUnsignedLong(uploadIdHex, 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (upload == null || upload.uploaderId != uploaderId) return null;
+        upload.lastActivity = System.currentTimeMillis();
+        return upload;
+    }
+
+    /**
+     * Writes one upload chunk frame to its spool file. Chunks must arrive in
+     * order; after a reconnect the client resumes from the offset we report.
+     * @return The upload if this chunk completed it (it is then no longer in
+     *         progress), otherwise null.
+     * @throws IllegalArgumentException If the frame is malformed or out of place.
+     */
+    public Upload write(int uploaderId, ByteBuffer frame) throws IOException {
+        if (frame.remaining() < HEADER_SIZE || frame.get() != UPLOAD_CHUNK) {
+            throw new IllegalArgumentException("Unexpected binary frame.");
+        }
+        long uploadId = frame.getLong();
+        long offset = frame.getLong();
+        int length = frame.remaining();
+
+        Upload upload = uploads.get(uploadId);
+        if (upload == null || upload.uploaderId != uploaderId) {
+            throw new IllegalArgumentException("Unknown upload.");
+        }
+        if (length > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk too large.");
+        }
+
+        synchronized (upload) {
+            if (offset != upload.received) {
+                throw new IllegalArgumentException("Expected offset " + upload.received + ", got " + offset + ".");
+            }
+            if (offset + length > upload.size) {
+                throw new IllegalArgumentException("Chunk runs past the declared size.");
+            }
+            while (frame.hasRemaining()) {
+                upload.channel.write(frame, offset + (length - frame.remaining()));
+            }
+            upload.received += length;
+            upload.lastActivity = System.currentTimeMillis();
+
+            if (upload.received < upload.size) return null;
+        }
+        uploads.remove(uploadId);
+        return upload;
+    }
+
+    /**
+     * Checks a completed upload against the hash the client declared.
+     */
+    public boolean verify(Upload upload) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Every JVM has it
+        }
+        ByteBuffer buffer = chunkBuffers.get();
+        long position = 0;
+        while (position < upload.size) {
+            buffer.clear();
+            int read = upload.channel.read(buffer, position);
+            if (read < 0) break;
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return HexFormat.of().formatHex(digest.digest()).equals(upload.sha256);
+    }
+
+    /**
+     * Moves a verified upload into permanent storage under its attachment id.
+     */
+    public void store(Upload upload, int attachmentId) throws IOException {
+        upload.channel.force(false);
+        upload.channel.close();
+        Files.move(upload.spoolFile, fileFor(attachmentId), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Throws away an upload and its spooled bytes.
+     */
+    public void discard(Upload upload) {
+        uploads.remove(upload.uploadId);
+        try {
+            upload.channel.close();
+            Files.deleteIfExists(upload.spoolFile);
+        } catch (IOException e) {
+            log.warn("Could not delete spool file {}: {}", upload.spoolFile, e.getMessage());
+        }
+    }
+
+    private void expireIdleUploads() {
+        long cutoff = System.currentTimeMillis() - UPLOAD_IDLE_TIMEOUT_MS;
+        for (Upload upload : uploads.values()) {
+            if (upload.lastActivity < cutoff) {
+                log.info("Discarding abandoned upload {}", upload.uploadIdHex());
+                discard(upload);
+            }
+        }
+    }
+
+    /**
+     * Runs slow work (hashing, storing) off the WebSocket threads.
+     */
+    public void execute(Runnable task) {
+        transfers.execute(task);
+    }
+
+    // --- Downloads ---
+
+    /**
+     * Streams a stored attachment to a connection as download chunk frames,
+     * starting at 'offset'. Returns straight away; the transfer runs in the background.
+     */
+    public void download(WebSocket conn, int attachmentId, long size, long offset) throws IOException {
+        FileChannel channel = FileChannel.open(fileFor(attachmentId), StandardOpenOption.READ);
+        transfers.execute(() -> sendNextChunk(conn, channel, attachmentId, size, offset));
+    }
+
+    private void sendNextChunk(WebSocket conn, FileChannel channel, int attachmentId, long size, long position) {
+        try {
+            if (!conn.isOpen()) {
+                channel.close();
+                return;
+            }
+            // Let the connection drain first, so chat messages never wait behind a backlog of file data
+            if (conn.hasBufferedData()) {
+                transfers.schedule(() -> sendNextChunk(conn, channel, attachmentId, size, position), DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            ByteBuffer buffer = chunkBuffers.get();
+            buffer.clear();
+            buffer.put(DOWNLOAD_CHUNK).putLong(attachmentId).putLong(position);
+            buffer.limit(HEADER_SIZE + (int) Math.min(CHUNK_SIZE, size - position));
+            int read = 0;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + read);
+                if (n < 0) throw new IOException("Attachment file is shorter than recorded");
+                read += n;
+            }
+            buffer.flip();
+            conn.send(buffer); // Framed (and copied) by the library before this returns
+
+            long next = position + read;
+            if (next < size) {
+                transfers.execute(() -> sendNextChunk(conn, channel, attachmentId, size, next));
+            } else {
+                channel.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Attachment {} download failed: {}", attachmentId, e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        }
+    }
+
+    private Path fileFor(int attachmentId) {
+        return filesDir.resolve(Integer.toString(attachmentId));
+    }
+}
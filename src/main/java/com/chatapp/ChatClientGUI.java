@@ -1,16 +1,58 @@
 package com.chatapp;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
 import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Desktop client. By default it speaks the legacy line protocol of ChatServer;
+ * run with "--ws [url]" to talk JSON to WebSocketChatServer instead: log in,
+ * pick a friend from the list, chat, and scroll up to load older messages a
+ * page at a time.
+ */
 
 @SuppressWarnings({ "serial", "unused" })
 public class ChatClientGUI extends JFrame implements Runnable {
 
+    // Oldest lines are dropped once the chat area holds more than this
+    private static final int MAX_SCROLLBACK_LINES = 2000;
+    
+    // How often the EDT picks up new lines from the network thread
+    private static final int FLUSH_INTERVAL_MS = 50;
+    
+    // Messages asked for per history page (WebSocket mode)
+    private static final int HISTORY_PAGE_SIZE = 50;
+    
+    // The next page is asked for once the view is this many rows from the top
+    private static final int LOAD_MORE_ROWS = 10;
+    
+    // While the user keeps typing, "start_typing" is repeated this often at most
+    private static final long TYPING_RESEND_MS = 3000;
+    
     // GUI Components
     private JTextArea chatArea; 
     private JTextField messageField; 
@@ -24,16 +66,63 @@ public class ChatClientGUI extends JFrame implements Runnable {
     private BufferedReader in;
     private final String serverAddress = "localhost";
     private final int serverPort = 8080; 
+    
+    // Lines waiting to be shown; filled by the network thread, drained on the EDT.
+    // Bounded like the scrollback, so a stalled EDT can't let it grow without limit.
+    private final Queue<String> incomingLines = new ArrayBlockingQueue<>(MAX_SCROLLBACK_LINES);
+    
+    // --- WebSocket mode; null/unused in line mode. Everything below is EDT-only. ---
+    private final URI webSocketUri;
+    private ChatSocket webSocket;
+    private final BlockingQueue<JSONObject> incomingFrames = new ArrayBlockingQueue<>(MAX_SCROLLBACK_LINES);
+    
+    private JLabel statusLabel;
+    private JList<MessageListModel.Line> messageList;
+    private JScrollPane messageScrollPane;
+    private final MessageListModel messages = new MessageListModel(MAX_SCROLLBACK_LINES);
+    
+    private String myUsername; // Set once logged in
+    private String pendingUsername, pendingPassword; // Until then
+    private boolean registerFirst; // Register before logging in, once connected
+    
+    private String openConversation; // The friend whose messages are shown
+    private int nextBeforeId; // Where the next older page starts; 0 if there is none
+    private boolean loadingHistory;
+    private boolean firstPage;
+    private final List<MessageListModel.Line> heldBack = new ArrayList<>(); // Live messages that came in before it
+    private boolean rebuildingContacts;
+    
+    private final Map<String, Boolean> presence = new HashMap<>();
+    private final Set<String> unread = new HashSet<>();
+    private String typingUser;
+    private long typingSentAt; // 0 if we haven't said we're typing
+    
+    // clientMessageId -> receiver, for telling which conversation our own copy belongs to
+    private final Map<String, String> pendingSends = new HashMap<>();
 
     public ChatClientGUI() {
+        this(null);
+    }
+    
+    /**
+     * @param webSocketUri Where WebSocketChatServer is, for WebSocket mode;
+     *                     null for the line protocol.
+     */
+    public ChatClientGUI(URI webSocketUri) {
         super("Java Chat Client");
+        this.webSocketUri = webSocketUri;
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         
         // --- 1. Setup Chat Panel (Main Communication Area) ---
         chatArea = new JTextArea();
         chatArea.setEditable(false);
         chatArea.setBackground(new Color(240, 240, 255)); // Light background for chat
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
+        JScrollPane chatScrollPane;
+        if (webSocketUri == null) {
+            chatScrollPane = new JScrollPane(chatArea);
+        } else {
+            chatScrollPane = messageScrollPane = new JScrollPane(createMessageList());
+        }
 
         messageField = new JTextField();
         sendButton = new JButton("Send");
@@ -47,6 +136,10 @@ public class ChatClientGUI extends JFrame implements Runnable {
         JPanel mainChatPanel = new JPanel(new BorderLayout());
         mainChatPanel.add(chatScrollPane, BorderLayout.CENTER);
         mainChatPanel.add(inputPanel, BorderLayout.SOUTH);
+        if (webSocketUri != null) {
+            statusLabel = new JLabel("Connecting to " + webSocketUri + "...");
+            mainChatPanel.add(statusLabel, BorderLayout.NORTH);
+        }
         
         // --- 2. Setup User List Panel ---
         listModel = new DefaultListModel<>();
@@ -69,6 +162,84 @@ public class ChatClientGUI extends JFrame implements Runnable {
         // --- 5. Add Action Listeners ---
         sendButton.addActionListener(e -> sendMessage());
         messageField.addActionListener(e -> sendMessage());
+        
+        if (webSocketUri != null) {
+            userList.setCellRenderer(new ContactRenderer());
+            userList.addListSelectionListener(e -> {
+                if (!e.getValueIsAdjusting() && !rebuildingContacts) openConversation(userList.getSelectedValue());
+            });
+            messageScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> maybeLoadOlder());
+            messageField.getDocument().addDocumentListener(new DocumentListener() {
+                @Override public void insertUpdate(DocumentEvent e) { typingChanged(); }
+                @Override public void removeUpdate(DocumentEvent e) { typingChanged(); }
+                @Override public void changedUpdate(DocumentEvent e) { }
+            });
+        }
+        
+        // --- 6. Render incoming lines and frames in batches, on the EDT ---
+        new Timer(FLUSH_INTERVAL_MS, e -> {
+            flushIncomingLines();
+            flushIncomingFrames();
+        }).start();
+    }
+    
+    /**
+     * A JList only paints the rows in view, and with a fixed row size it
+     * doesn't have to measure the others either, so thousands of loaded
+     * messages cost no more to show than a screenful.
+     */
+    private JList<MessageListModel.Line> createMessageList() {
+        messageList = new JList<>(messages);
+        messageList.setBackground(new Color(240, 240, 255));
+        messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight() + 4);
+        messageList.setFixedCellWidth(1); // Narrower than the viewport, so the list just tracks its width
+        return messageList;
+    }
+    
+    /**
+     * Queues a line for display. Safe to call from any thread.
+     * If the queue is full, the oldest waiting line is dropped; it would
+     * have been trimmed from the scrollback anyway.
+     */
+    private void postLine(String line) {
+        while (!incomingLines.offer(line)) {
+            incomingLines.poll();
+        }
+    }
+    
+    /**
+     * Runs on the EDT: appends everything queued since the last tick in one go,
+     * then trims the oldest lines so memory stays bounded.
+     */
+    private void flushIncomingLines() {
+        if (incomingLines.isEmpty()) return;
+        
+        // Only the newest MAX_SCROLLBACK_LINES can survive the trim anyway
+        ArrayDeque<String> batch = new ArrayDeque<>();
+        String line;
+        while ((line = incomingLines.poll()) != null) {
+            batch.addLast(line);
+            if (batch.size() > MAX_SCROLLBACK_LINES) {
+                batch.removeFirst();
+            }
+        }
+        
+        StringBuilder text = new StringBuilder();
+        for (String l : batch) {
+            text.append(l).append('\n');
+        }
+        chatArea.append(text.toString());
+        
+        // The text always ends with '\n', so the last "line" is empty
+        int excess = chatArea.getLineCount() - 1 - MAX_SCROLLBACK_LINES;
+        if (excess > 0) {
+            try {
+                chatArea.replaceRange("", 0, chatArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                chatArea.setText(""); // Shouldn't happen; start over rather than grow
+            }
+        }
+        chatArea.setCaretPosition(chatArea.getDocument().getLength());
     }
     
     // ... (connect, run, sendMessage, closeConnection methods remain the same for now)
@@ -76,13 +247,17 @@ public class ChatClientGUI extends JFrame implements Runnable {
     
     // Keep the main methods outside of the constructor
     public void connect() {
+        if (webSocketUri != null) {
+            connectWebSocket();
+            return;
+        }
         try {
             socket = new Socket(serverAddress, serverPort);
             out = new PrintWriter(socket.getOutputStream(), true);
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            chatArea.append("Connected to server: " + serverAddress + ":" + serverPort + "\n");
+            postLine("Connected to server: " + serverAddress + ":" + serverPort);
         } catch (IOException e) {
-            chatArea.append("Error: Could not connect to server.\n");
+            postLine("Error: Could not connect to server.");
             dispose(); 
         }
     }
@@ -92,16 +267,20 @@ public class ChatClientGUI extends JFrame implements Runnable {
         try {
             String serverResponse;
             while ((serverResponse = in.readLine()) != null) {
-                chatArea.append(serverResponse + "\n");
+                postLine(serverResponse);
             }
         } catch (IOException e) {
-            chatArea.append("Connection lost to server.\n");
+            postLine("Connection lost to server.");
         } finally {
             closeConnection();
         }
     }
 
     private void sendMessage() {
+        if (webSocketUri != null) {
+            sendPrivateMessage();
+            return;
+        }
         String message = messageField.getText();
         if (out != null && !message.trim().isEmpty()) {
             out.println(message);
@@ -117,8 +296,435 @@ public class ChatClientGUI extends JFrame implements Runnable {
         } catch (IOException e) {}
     }
 
+    // --- WEBSOCKET MODE ---
+    
+    private void connectWebSocket() {
+        if (!promptLogin()) {
+            dispose();
+            return;
+        }
+        webSocket = new ChatSocket(webSocketUri);
+        webSocket.connect(); // Logs in from onOpen
+    }
+    
+    /**
+     * Asks for a username and password, and whether to log in or register.
+     * @return False if the user cancelled.
+     */
+    private boolean promptLogin() {
+        JTextField usernameField = new JTextField(pendingUsername == null ? "" : pendingUsername, 16);
+        JPasswordField passwordField = new JPasswordField(16);
+        JPanel form = new JPanel(new GridLayout(0, 1));
+        form.add(new JLabel("Username:"));
+        form.add(usernameField);
+        form.add(new JLabel("Password:"));
+        form.add(passwordField);
+        
+        Object[] options = { "Log in", "Register", "Cancel" };
+        int choice = JOptionPane.showOptionDialog(this, form, "Log in to " + webSocketUri,
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+        if (choice != 0 && choice != 1) return false;
+        
+        pendingUsername = usernameField.getText().trim();
+        pendingPassword = new String(passwordField.getPassword());
+        if (webSocket != null && webSocket.isOpen()) {
+            sendLoginOrRegister(choice == 1);
+        } else {
+            registerFirst = choice == 1;
+        }
+        return true;
+    }
+    
+    private void sendLoginOrRegister(boolean register) {
+        JSONObject json = new JSONObject();
+        json.put("type", register ? "register" : "login");
+        json.put("username", pendingUsername);
+        json.put("password", pendingPassword);
+        sendJson(json);
+    }
+    
+    private void sendJson(JSONObject json) {
+        if (webSocket != null && webSocket.isOpen()) {
+            webSocket.send(json.toString());
+        }
+    }
+    
+    private void status(String text) {
+        statusLabel.setText(text);
+    }
+    
+    /**
+     * Runs on the EDT: handles every frame that came in since the last tick,
+     * then scrolls to the newest message if the user was already there.
+     */
+    private void flushIncomingFrames() {
+        if (incomingFrames.isEmpty()) return;
+        
+        JScrollBar bar = messageScrollPane.getVerticalScrollBar();
+        boolean atEnd = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - messageList.getFixedCellHeight();
+        int sizeBefore = messages.getSize();
+        
+        JSONObject json;
+        while ((json = incomingFrames.poll()) != null) {
+            handleFrame(json);
+        }
+        if (atEnd && messages.getSize() != sizeBefore) {
+            scrollToEnd();
+        }
+    }
+    
+    private void handleFrame(JSONObject json) {
+        switch (json.optString("type")) {
+            case "login_success":
+                myUsername = json.getJSONObject("data").getString("username");
+                pendingPassword = null;
+                setTitle("Java Chat Client - " + myUsername);
+                status("Logged in as " + myUsername + ". Pick a friend to chat with.");
+                break;
+            case "register_success":
+                sendLoginOrRegister(false);
+                break;
+            case "contact_list":
+                showContactList(json);
+                break;
+            case "message_history":
+                showHistoryPage(json);
+                break;
+            case "private_message_incoming":
+                showIncomingMessage(json.getJSONObject("data"));
+                break;
+            case "user_typing":
+            case "user_stopped_typing":
+                typingUser = json.getString("type").equals("user_typing") ? json.getString("username") : null;
+                showConversationStatus();
+                break;
+            case "server_status":
+                status(json.getBoolean("degraded")
+                        ? "The server is having trouble: new messages won't be saved."
+                        : "The server is back to normal.");
+                break;
+            case "error":
+                handleError(json);
+                break;
+            default:
+                break; // Receipts, inbox updates etc. aren't shown by this client
+        }
+    }
+    
+    private void handleError(JSONObject json) {
+        String message = json.optString("message", "Unknown error");
+        if (myUsername == null) {
+            // Login or registration failed; ask again
+            JOptionPane.showMessageDialog(this, message, "Chat", JOptionPane.ERROR_MESSAGE);
+            if (!promptLogin()) dispose();
+            return;
+        }
+        if ("get_message_history".equals(json.optString("requestType"))) {
+            loadingHistory = false;
+        }
+        status(message);
+    }
+    
+    /**
+     * Fills the user list with our friends. We never send a "version", so
+     * the server always sends the whole list rather than diffs.
+     */
+    private void showContactList(JSONObject json) {
+        JSONArray friends = json.getJSONArray("friends");
+        List<String> names = new ArrayList<>();
+        presence.clear();
+        for (int i = 0; i < friends.length(); i++) {
+            JSONObject friend = friends.getJSONObject(i);
+            names.add(friend.getString("username"));
+            presence.put(friend.getString("username"), friend.getBoolean("online"));
+        }
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        
+        rebuildingContacts = true;
+        try {
+            listModel.clear();
+            for (String name : names) listModel.addElement(name);
+            if (openConversation != null) userList.setSelectedValue(openConversation, true);
+        } finally {
+            rebuildingContacts = false;
+        }
+        
+        int pending = json.getJSONArray("pending").length();
+        if (pending > 0 && openConversation == null) {
+            status(pending + " friend request(s) waiting.");
+        }
+    }
+    
+    /**
+     * Shows a conversation: starts empty and asks for the newest page.
+     */
+    private void openConversation(String username) {
+        if (username == null || username.equals(openConversation)) return;
+        stopTyping();
+        openConversation = username;
+        typingUser = null;
+        unread.remove(username);
+        userList.repaint();
+        
+        messages.clear();
+        heldBack.clear();
+        nextBeforeId = 0;
+        firstPage = true;
+        requestHistory(0);
+        showConversationStatus();
+    }
+    
+    private void requestHistory(int beforeId) {
+        JSONObject json = new JSONObject();
+        json.put("type", "get_message_history");
+        json.put("withUser", openConversation);
+        json.put("limit", HISTORY_PAGE_SIZE);
+        if (beforeId > 0) json.put("beforeId", beforeId);
+        loadingHistory = true;
+        sendJson(json);
+    }
+    
+    /**
+     * Asks for the next older page once the user has scrolled near the top.
+     */
+    private void maybeLoadOlder() {
+        if (openConversation == null || loadingHistory || nextBeforeId <= 0) return;
+        if (messageScrollPane.getVerticalScrollBar().getValue() > messageList.getFixedCellHeight() * LOAD_MORE_ROWS) return;
+        requestHistory(nextBeforeId);
+    }
+    
+    private void showHistoryPage(JSONObject json) {
+        if (!json.getString("withUser").equals(openConversation)) return; // An answer for a conversation we left
+        
+        JSONArray history = json.getJSONArray("history");
+        List<MessageListModel.Line> page = new ArrayList<>(history.length());
+        for (int i = 0; i < history.length(); i++) {
+            page.add(toLine(history.getJSONObject(i)));
+        }
+        nextBeforeId = json.optInt("nextBeforeId", 0);
+        
+        if (firstPage) {
+            firstPage = false;
+            // Live messages that came in while we waited; the page may or may not have them already
+            Set<Integer> onPage = new HashSet<>();
+            int newest = 0;
+            for (MessageListModel.Line line : page) {
+                onPage.add(line.messageId);
+                newest = Math.max(newest, line.messageId);
+            }
+            for (MessageListModel.Line line : heldBack) {
+                if (line.messageId == 0 || !onPage.contains(line.messageId)) page.add(line);
+                newest = Math.max(newest, line.messageId);
+            }
+            heldBack.clear();
+            appendLive(page);
+            scrollToEnd();
+            // Tell the sender we've seen up to here
+            markRead(newest);
+        } else {
+            // Keep the rows the user is looking at where they are
+            JScrollBar bar = messageScrollPane.getVerticalScrollBar();
+            int value = bar.getValue();
+            messages.prepend(page);
+            messageScrollPane.validate();
+            bar.setValue(value + page.size() * messageList.getFixedCellHeight());
+        }
+        loadingHistory = false;
+        
+        // A short page may not fill the view yet, so there's nothing to scroll
+        maybeLoadOlder();
+    }
+    
+    private void showIncomingMessage(JSONObject data) {
+        String sender = data.getString("sender");
+        String peer;
+        if (sender.equals(myUsername)) {
+            // Our own message coming back; it belongs to whoever we sent it to
+            peer = pendingSends.remove(data.optString("clientMessageId"));
+            if (peer == null) return; // Sent from another session of ours
+        } else {
+            peer = sender;
+        }
+        
+        if (!peer.equals(openConversation)) {
+            unread.add(peer);
+            userList.repaint();
+            return;
+        }
+        if (sender.equals(typingUser)) {
+            typingUser = null;
+            showConversationStatus();
+        }
+        if (firstPage) {
+            // The page may be read from a replica that doesn't have this yet, or
+            // simply arrive after it, so keep it until the page is shown
+            if (heldBack.size() == MAX_SCROLLBACK_LINES) heldBack.remove(0);
+            heldBack.add(toLine(data));
+            return;
+        }
+        appendLive(Collections.singletonList(toLine(data)));
+        if (!sender.equals(myUsername)) markRead(data.getInt("messageId"));
+    }
+    
+    private void appendLive(List<MessageListModel.Line> lines) {
+        if (messages.append(lines) > 0) {
+            // The oldest were dropped; scrolling up loads them again
+            nextBeforeId = messages.oldestMessageId();
+        }
+    }
+    
+    private void markRead(int messageId) {
+        if (messageId <= 0) return;
+        JSONObject json = new JSONObject();
+        json.put("type", "mark_read");
+        json.put("withUser", openConversation);
+        json.put("messageId", messageId);
+        sendJson(json);
+    }
+    
+    private static MessageListModel.Line toLine(JSONObject message) {
+        String text = "[" + message.getString("timestamp") + "] " + message.getString("sender") + ": " + message.getString("message");
+        if (!message.optBoolean("saved", true)) {
+            text += "  (not saved)";
+        }
+        return new MessageListModel.Line(Math.max(0, message.getInt("messageId")), text);
+    }
+    
+    private void scrollToEnd() {
+        messageScrollPane.validate();
+        JScrollBar bar = messageScrollPane.getVerticalScrollBar();
+        bar.setValue(bar.getMaximum());
+    }
+    
+    private void showConversationStatus() {
+        if (openConversation == null) return;
+        if (typingUser != null && typingUser.equals(openConversation)) {
+            status(typingUser + " is typing...");
+        } else {
+            status("Chatting with " + openConversation
+                    + (Boolean.TRUE.equals(presence.get(openConversation)) ? " (online)" : " (offline)"));
+        }
+    }
+    
+    private void sendPrivateMessage() {
+        String message = messageField.getText();
+        if (openConversation == null || message.trim().isEmpty()) return;
+        
+        // Safe to resend: the server drops a second copy with the same id
+        String clientMessageId = UUID.randomUUID().toString();
+        pendingSends.put(clientMessageId, openConversation);
+        
+        JSONObject json = new JSONObject();
+        json.put("type", "private_message");
+        json.put("receiverUsername", openConversation);
+        json.put("message", message);
+        json.put("clientMessageId", clientMessageId);
+        sendJson(json);
+        
+        typingSentAt = 0; // The server says we stopped typing when the message goes out
+        messageField.setText("");
+    }
+    
+    private void typingChanged() {
+        if (openConversation == null) return;
+        if (messageField.getDocument().getLength() == 0) {
+            stopTyping();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - typingSentAt < TYPING_RESEND_MS) return;
+        typingSentAt = now;
+        sendTyping("start_typing");
+    }
+    
+    private void stopTyping() {
+        if (typingSentAt == 0) return;
+        typingSentAt = 0;
+        sendTyping("stop_typing");
+    }
+    
+    private void sendTyping(String type) {
+        JSONObject json = new JSONObject();
+        json.put("type", type);
+        json.put("toUser", openConversation);
+        sendJson(json);
+    }
+    
+    /**
+     * Friends in bold while they have unread messages, with a dot when online.
+     */
+    private class ContactRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            String name = (String) value;
+            super.getListCellRendererComponent(list, name, index, isSelected, cellHasFocus);
+            if (Boolean.TRUE.equals(presence.get(name))) {
+                setText("\u25CF " + name);
+            }
+            if (unread.contains(name)) {
+                setFont(getFont().deriveFont(Font.BOLD));
+            }
+            return this;
+        }
+    }
+    
+    /**
+     * The connection to WebSocketChatServer. Frames are parsed here, on the
+     * socket's thread, and queued for the EDT.
+     */
+    private class ChatSocket extends WebSocketClient {
+        ChatSocket(URI uri) {
+            super(uri);
+        }
+        
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            SwingUtilities.invokeLater(() -> {
+                status("Connected to " + webSocketUri + ". Logging in...");
+                sendLoginOrRegister(registerFirst);
+            });
+        }
+        
+        @Override
+        public void onMessage(String message) {
+            JSONObject frame;
+            try {
+                frame = new JSONObject(message);
+            } catch (RuntimeException e) {
+                return; // Not JSON; nothing this client can do with it
+            }
+            // Bounded like the line queue, but nothing is dropped: if the EDT falls this far
+            // behind, we stop reading and TCP holds the server back. Losing a login_success
+            // or message_history frame would leave the client stuck.
+            try {
+                incomingFrames.put(frame);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Closing
+            }
+        }
+        
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            SwingUtilities.invokeLater(() -> status("Disconnected from server" + (reason.isEmpty() ? "." : ": " + reason)));
+        }
+        
+        @Override
+        public void onError(Exception ex) {
+            SwingUtilities.invokeLater(() -> status("Connection error: " + ex.getMessage()));
+        }
+    }
+
+    /**
+     * Run with "--ws [url]" to use WebSocketChatServer
+     * (default ws://localhost:8080) instead of the line protocol.
+     */
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
+            if (args.length > 0 && args[0].equals("--ws")) {
+                ChatClientGUI client = new ChatClientGUI(URI.create(args.length > 1 ? args[1] : "ws://localhost:8080"));
+                client.connect();
+                return;
+            }
             ChatClientGUI client = new ChatClientGUI();
             client.connect();
             new Thread(client).start();
@@ -0,0 +1,170 @@
+package com.chatapp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom JDK Flight Recorder events, so a slow send in a recording can be
+ * lined up with the query that made it slow.
+ *
+ * Off unless the server runs with -Dchat.jfr=true (or CHAT_JFR=true). When
+ * off, ENABLED is a constant false and none of this allocates or reads a clock.
+ * When on, record as usual, e.g.:
+ *   java -Dchat.jfr=true -XX:StartFlightRecording=filename=chat.jfr,settings=profile -jar ...
+ */
+public final class ChatEvents {
+
+    static final boolean ENABLED = Boolean.getBoolean("chat.jfr")
+            || Boolean.parseBoolean(DataSourceRouter.env("CHAT_JFR", "false"));
+
+    private ChatEvents() {
+    }
+
+    // --- Events ---
+
+    @Name("com.chatapp.MessageDispatch")
+    @Label("Message Dispatch")
+    @Description("One client message handled by WebSocketChatServer.onMessage")
+    @Category("Chat Server")
+    @StackTrace(false)
+    static final class MessageDispatch extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("User ID")
+        @Description("-1 if the connection is not logged in")
+        int userId = -1;
+
+        @Label("Throttled")
+        boolean throttled;
+    }
+
+    @Name("com.chatapp.DatabaseCall")
+    @Label("Database Call")
+    @Description("One DatabaseManager method, from asking for a connection to closing it")
+    @Category("Chat Server")
+    @StackTrace(false)
+    static final class DatabaseCall extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Read Only")
+        @Description("Routed through connectForRead, so possibly served by a replica")
+        boolean readOnly;
+
+        @Label("Connection Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long connectionWait;
+
+        @Label("Execution")
+        @Timespan(Timespan.NANOSECONDS)
+        long execution;
+
+        // Transient, so JFR doesn't record them; only used to split the timings
+        transient long startedAt;
+        transient long acquiredAt;
+    }
+
+    @Name("com.chatapp.FanOut")
+    @Label("Fan-Out")
+    @Description("One frame sent to several connections")
+    @Category("Chat Server")
+    @StackTrace(false)
+    static final class FanOut extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Bytes")
+        @Description("UTF-8 payload size times recipients")
+        @DataAmount
+        long bytes;
+    }
+
+    // --- Helpers (all no-ops when disabled) ---
+
+    /**
+     * @return A started dispatch event, or null when recording is disabled.
+     */
+    static MessageDispatch beginDispatch() {
+        if (!ENABLED) return null;
+        MessageDispatch event = new MessageDispatch();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @return A started fan-out event, or null when recording is disabled.
+     */
+    static FanOut beginFanOut() {
+        if (!ENABLED) return null;
+        FanOut event = new FanOut();
+        event.begin();
+        return event;
+    }
+
+    static void commitFanOut(FanOut event, String kind, int recipients, String frame) {
+        if (event == null || !event.shouldCommit()) return;
+        event.kind = kind;
+        event.recipients = recipients;
+        event.bytes = (long) utf8Length(frame) * recipients;
+        event.commit();
+    }
+
+    /**
+     * Starts timing a database call; pass the result to track() once the
+     * connection is open.
+     */
+    static DatabaseCall beginDatabaseCall(String method, boolean readOnly) {
+        DatabaseCall event = new DatabaseCall();
+        event.method = method;
+        event.readOnly = readOnly;
+        event.begin();
+        event.startedAt = System.nanoTime();
+        return event;
+    }
+
+    /**
+     * Wraps a freshly opened connection so the event is committed when it is closed.
+     */
+    static Connection track(DatabaseCall event, Connection conn) {
+        event.acquiredAt = System.nanoTime();
+        event.connectionWait = event.acquiredAt - event.startedAt;
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close") && event.execution == 0) {
+                        event.execution = System.nanoTime() - event.acquiredAt;
+                        event.commit();
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) bytes += 1;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c)) { bytes += 4; i++; }
+            else bytes += 3;
+        }
+        return bytes;
+    }
+}
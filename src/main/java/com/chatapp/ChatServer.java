@@ -3,17 +3,21 @@ package com.chatapp;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ChatServer {
 
+    private static final Logger log = LoggerFactory.getLogger(ChatServer.class);
+
     private final int port;
     private ServerSocket serverSocket;
     
-    // Use a synchronized list to safely handle client threads accessing it concurrently
-    private final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>()); 
+    // Copy-on-write, so broadcasts can iterate safely while clients come and go
+    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>(); 
 
     public ChatServer(int port) {
         this.port = port;
@@ -22,12 +26,10 @@ public class ChatServer {
     public void start() {
         try {
             serverSocket = new ServerSocket(port);
-            System.out.println("✅ Server started. Listening on port " + port);
-
+            log.info("✅ Server started. Listening on port {}", port);
             while (true) {
                 Socket clientSocket = serverSocket.accept(); 
-                System.out.println("🔗 New client connected: " + clientSocket);
-
+                log.debug("🔗 New client connected: {}", clientSocket);
                 // Create and add the handler
                 ClientHandler clientHandler = new ClientHandler(clientSocket, this);
                 clients.add(clientHandler); 
@@ -35,11 +37,11 @@ public class ChatServer {
                 // Start the handler thread
                 new Thread(clientHandler).start();
                 
-                System.out.println("Current active clients: " + clients.size());
+                log.debug("Current active clients: {}", clients.size());
             }
 
         } catch (IOException e) {
-            System.err.println("Server exception: " + e.getMessage());
+            log.error("Server exception: {}", e.getMessage());
         }
     }
 
@@ -52,7 +54,7 @@ public class ChatServer {
      * Sends a message to all connected clients.
      */
     public void broadcastMessage(String message, ClientHandler sender) {
-        // Iterate over a copy of the list to prevent ConcurrentModificationException
+        // Iterating a CopyOnWriteArrayList works on a snapshot, so no ConcurrentModificationException
         for (ClientHandler client : clients) {
             client.sendMessage(message);
         }
@@ -63,12 +65,20 @@ public class ChatServer {
      */
     public void removeClient(ClientHandler client) {
         clients.remove(client);
-        System.out.println("Client removed. Current active clients: " + clients.size());
+        log.debug("Client removed. Current active clients: {}", clients.size());
         broadcastMessage("A client has disconnected.", null);
     }
 
 
+    /**
+     * Run with "--nio" to serve every client from one selector thread
+     * (see NioChatServer) instead of a thread per client.
+     */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--nio")) {
+            new NioChatServer(8080).start();
+            return;
+        }
         ChatServer server = new ChatServer(8080);
         server.start();
     }
@@ -0,0 +1,107 @@
+package com.chatapp;
+
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calling a dependency that keeps failing, instead of letting every
+ * caller wait for its own timeout.
+ *
+ *   closed     calls go through; enough failures in a row open the breaker
+ *   open       calls are refused straight away, for a cool-down period
+ *   half-open  after the cool-down, one trial call goes through; it either
+ *              closes the breaker again or re-opens it
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Consumer<Boolean> onOpenChanged;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+
+    // Open or half-open; read without the lock, since it's checked on every request
+    private volatile boolean open;
+
+    /**
+     * @param onOpenChanged Told true when the breaker opens and false once it
+     *                      has closed again (not on every half-open trial).
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis, Consumer<Boolean> onOpenChanged) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.onOpenChanged = onOpenChanged;
+    }
+
+    /**
+     * Asks to make a call. The caller must report its outcome with
+     * recordSuccess() or recordFailure() if this returns true.
+     * @return False if the call should be refused without trying.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) return false;
+                state = State.HALF_OPEN; // This caller is the trial
+                return true;
+            default:
+                return false; // A trial is already under way
+        }
+    }
+
+    /**
+     * Only the half-open trial closes the breaker. Calls that started before
+     * it opened can still finish fine while it's open; those don't count.
+     */
+    public void recordSuccess() {
+        synchronized (this) {
+            if (state == State.OPEN) return;
+            consecutiveFailures = 0;
+            if (state == State.CLOSED) return;
+            state = State.CLOSED;
+            open = false;
+        }
+        log.info("Circuit '{}' closed again", name);
+        onOpenChanged.accept(false);
+    }
+
+    public void recordFailure() {
+        boolean opened;
+        synchronized (this) {
+            consecutiveFailures++;
+            if (state == State.CLOSED && consecutiveFailures < failureThreshold) return;
+            opened = !open;
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openMillis;
+            open = true;
+        }
+        if (opened) {
+            log.warn("Circuit '{}' opened after {} failures in a row; refusing calls for {} ms", name, failureThreshold, openMillis);
+            onOpenChanged.accept(true);
+        }
+    }
+
+    /**
+     * @return True from the moment the breaker opens until a trial call has
+     *         closed it again.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -3,8 +3,13 @@ package com.chatapp;
 import java.io.*;
 import java.net.Socket;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class ClientHandler implements Runnable {
 
+    private static final Logger log = LoggerFactory.getLogger(ClientHandler.class);
+
     private final Socket clientSocket;
     private final ChatServer server; // Reference to the main server
     private PrintWriter out;
@@ -22,10 +27,9 @@ public class ClientHandler implements Runnable {
             
             // This is the line that uses the new getClients() method
             this.username = "User" + (server.getClients().size()); 
-            System.out.println("Assigned temporary username: " + username);
-
+            log.debug("Assigned temporary username: {}", username);
         } catch (IOException e) {
-            System.err.println("Error setting up streams for client: " + e.getMessage());
+            log.error("Error setting up streams for client: {}", e.getMessage());
         }
     }
 
@@ -40,11 +44,11 @@ public class ClientHandler implements Runnable {
             while ((message = in.readLine()) != null) {
                 // Prepend the username before broadcasting
                 String fullMessage = "[" + username + "]: " + message; 
-                System.out.println("Broadcasting: " + fullMessage);
+                log.debug("Broadcasting: {}", fullMessage);
                 server.broadcastMessage(fullMessage, this); 
             }
         } catch (IOException e) {
-            System.out.println(username + " disconnected.");
+            log.debug("{} disconnected.", username);
         } finally {
             // Clean up resources and notify the server to remove this handler
             closeResources();
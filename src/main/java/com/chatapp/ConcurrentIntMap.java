@@ -0,0 +1,138 @@
+package com.chatapp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * An open-addressing int -> object map with lock-free reads.
+ *
+ * Keys are stored as plain ints (no Integer boxing, no Node per entry), so a
+ * lookup is a hash, a few probes in an int array and one array read.
+ *
+ * Writes must be serialized by the caller (SessionRegistry holds a lock);
+ * any number of threads may read at the same time. Keys must be positive,
+ * since 0 marks an empty slot.
+ *
+ * Removing a key leaves it in place with a null value, so readers probing
+ * past that slot never miss anything. Such dead keys are dropped the next
+ * time the table is rebuilt. A reader that was already probing the old table
+ * during a rebuild sees the map as it was just before; that's fine for presence.
+ */
+public class ConcurrentIntMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table<V> {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<V> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table<V> table = new Table<>(MIN_CAPACITY);
+
+    // Only touched by the (single) writer
+    private int usedSlots; // Live and dead keys
+    private int size;      // Live keys
+
+    /**
+     * @return The value for the key, or null if there is none.
+     */
+    public V get(int key) {
+        if (key <= 0) return null;
+        Table<V> t = table;
+        for (int i = slotFor(key, t.mask); ; i = (i + 1) & t.mask) {
+            int k = t.keys.get(i);
+            if (k == key) return t.values.get(i);
+            if (k == 0) return null;
+        }
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Sets (or, with a null value, removes) the value for a key. Callers must not write concurrently.
+     * @return The previous value, or null.
+     */
+    public V put(int key, V value) {
+        if (key <= 0) throw new IllegalArgumentException("Keys must be positive: " + key);
+        Table<V> t = table;
+        int i = slotFor(key, t.mask);
+        for (; ; i = (i + 1) & t.mask) {
+            int k = t.keys.get(i);
+            if (k == key) {
+                V previous = t.values.getAndSet(i, value);
+                if (previous == null && value != null) size++;
+                if (previous != null && value == null) size--;
+                return previous;
+            }
+            if (k == 0) break;
+        }
+        if (value == null) return null;
+
+        // New key: publish the value before the key, so a reader that finds the key sees the value
+        t.values.set(i, value);
+        t.keys.set(i, key);
+        size++;
+        if (++usedSlots * 2 > t.mask + 1) {
+            rebuild();
+        }
+        return null;
+    }
+
+    public V remove(int key) {
+        return key <= 0 ? null : put(key, null);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls the action for every value. Entries added or removed during the
+     * walk may or may not be seen.
+     */
+    public void forEachValue(Consumer<V> action) {
+        Table<V> t = table;
+        for (int i = 0; i <= t.mask; i++) {
+            V value = t.values.get(i);
+            if (value != null) action.accept(value);
+        }
+    }
+
+    /**
+     * Copies the live entries into a fresh table sized for them, dropping dead keys.
+     */
+    private void rebuild() {
+        Table<V> old = table;
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 3) capacity <<= 1; // Back to at most a third full
+
+        Table<V> next = new Table<>(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            V value = old.values.get(i);
+            if (value == null) continue;
+            int key = old.keys.get(i);
+            int j = slotFor(key, next.mask);
+            while (next.keys.get(j) != 0) j = (j + 1) & next.mask;
+            next.values.set(j, value);
+            next.keys.set(j, key);
+        }
+        usedSlots = size;
+        table = next;
+    }
+
+    private static int slotFor(int key, int mask) {
+        // User ids are sequential; spread them so neighbours don't cluster
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
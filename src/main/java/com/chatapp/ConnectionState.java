@@ -0,0 +1,36 @@
+package com.chatapp;
+
+/**
+ * Per-connection state, stored as the WebSocket's attachment.
+ */
+public class ConnectionState {
+
+    // Set on login; -1 while the connection is anonymous
+    private volatile int userId = -1;
+
+    final RateLimiter.Buckets connectionBuckets = RateLimiter.newBuckets();
+
+    // Shared with the user's other connections; null until login
+    volatile RateLimiter.Buckets userBuckets;
+
+    // Contact list version last sent to this connection, and whether the client tracks versions
+    volatile long contactListVersion = -1;
+    volatile boolean versionedContacts;
+
+    // Throttled requests in the current window (only touched by this connection's worker thread)
+    int throttledCount;
+    long throttleWindowStart;
+
+    public int getUserId() {
+        return userId;
+    }
+
+    public boolean isLoggedIn() {
+        return userId != -1;
+    }
+
+    void setUser(int userId, RateLimiter.Buckets userBuckets) {
+        this.userBuckets = userBuckets;
+        this.userId = userId;
+    }
+}
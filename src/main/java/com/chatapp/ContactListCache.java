@@ -0,0 +1,274 @@
+package com.chatapp;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+/**
+ * Versioned contact lists (friends + pending requests) for online users.
+ *
+ * Every change to a user's friends, pending requests or a friend's presence
+ * produces a new snapshot with a new version. A client that tells us which
+ * version it holds gets "not modified", or a diff from that version, instead
+ * of the whole list again.
+ *
+ * Versions come from one global counter, so a version number a client kept
+ * from an earlier session can never be mistaken for a different snapshot.
+ */
+public class ContactListCache {
+
+    // How many old snapshots per user we can still diff against
+    private static final int MAX_HISTORY = 8;
+
+    private static final AtomicLong versionCounter = new AtomicLong();
+
+    // user_id -> that user's contact list state
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    // user_id -> users whose cached list has them as a friend (who cares about their presence)
+    private final Map<Integer, Set<Integer>> watchers = new ConcurrentHashMap<>();
+
+    /**
+     * An immutable contact list at one version.
+     */
+    public static final class Snapshot {
+        public final long version;
+        final Map<Integer, String> friendNames;   // user_id -> username
+        final Map<String, Boolean> friendsOnline; // username -> online, in display order
+        final Set<String> pending;
+
+        private Snapshot(long version, Map<Integer, String> friendNames, Map<String, Boolean> friendsOnline, Set<String> pending) {
+            this.version = version;
+            this.friendNames = friendNames;
+            this.friendsOnline = friendsOnline;
+            this.pending = pending;
+        }
+
+        boolean sameContentAs(Snapshot other) {
+            return other != null
+                    && friendsOnline.equals(other.friendsOnline)
+                    && pending.equals(other.pending);
+        }
+    }
+
+    private static final class Entry {
+        Snapshot current;
+        final ArrayDeque<Snapshot> history = new ArrayDeque<>(MAX_HISTORY);
+
+        // Must hold the entry's lock
+        Snapshot advance(Snapshot next) {
+            if (next.sameContentAs(current)) return current; // Nothing changed, keep the version
+            if (current != null) {
+                if (history.size() == MAX_HISTORY) history.removeFirst();
+                history.addLast(current);
+            }
+            current = next;
+            return next;
+        }
+
+        // Must hold the entry's lock
+        Snapshot find(long version) {
+            if (current != null && current.version == version) return current;
+            for (Snapshot old : history) {
+                if (old.version == version) return old;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return The user's current snapshot, or null if it isn't cached.
+     */
+    public Snapshot get(int userId) {
+        Entry entry = entries.get(userId);
+        if (entry == null) return null;
+        synchronized (entry) {
+            return entry.current;
+        }
+    }
+
+    /**
+     * Replaces a user's list with freshly loaded data.
+     * The version only changes if the content did.
+     */
+    public Snapshot update(int userId, Map<Integer, String> friends, Iterable<String> pendingUsernames, IntPredicate isOnline) {
+        Map<String, Boolean> online = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> friend : friends.entrySet()) {
+            online.put(friend.getValue(), isOnline.test(friend.getKey()));
+        }
+        Set<String> pending = new LinkedHashSet<>();
+        for (String username : pendingUsernames) {
+            pending.add(username);
+        }
+
+        Entry entry = entries.computeIfAbsent(userId, id -> new Entry());
+        Snapshot result;
+        Set<Integer> oldFriends;
+        synchronized (entry) {
+            oldFriends = entry.current != null ? entry.current.friendNames.keySet() : Collections.emptySet();
+            Snapshot next = new Snapshot(versionCounter.incrementAndGet(),
+                    Collections.unmodifiableMap(new LinkedHashMap<>(friends)),
+                    Collections.unmodifiableMap(online),
+                    Collections.unmodifiableSet(pending));
+            result = entry.advance(next);
+        }
+
+        // Keep the reverse index in step with the friend set
+        for (int friendId : oldFriends) {
+            if (!friends.containsKey(friendId)) unwatch(friendId, userId);
+        }
+        for (int friendId : friends.keySet()) {
+            watchers.computeIfAbsent(friendId, id -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+        return result;
+    }
+
+    /**
+     * Flips one friend's online flag in a user's list.
+     * @return The new snapshot, or null if nothing changed.
+     */
+    public Snapshot updatePresence(int userId, int friendId, boolean online) {
+        Entry entry = entries.get(userId);
+        if (entry == null) return null;
+        synchronized (entry) {
+            Snapshot current = entry.current;
+            String friendName = current.friendNames.get(friendId);
+            if (friendName == null || current.friendsOnline.get(friendName) == online) return null;
+
+            Map<String, Boolean> friendsOnline = new LinkedHashMap<>(current.friendsOnline);
+            friendsOnline.put(friendName, online);
+            return entry.advance(new Snapshot(versionCounter.incrementAndGet(),
+                    current.friendNames, Collections.unmodifiableMap(friendsOnline), current.pending));
+        }
+    }
+
+    /**
+     * @return Users whose cached list contains this user as a friend.
+     */
+    public Set<Integer> getWatchers(int userId) {
+        Set<Integer> users = watchers.get(userId);
+        return users != null ? users : Collections.emptySet();
+    }
+
+    /**
+     * Drops a user's list (they went offline).
+     */
+    public void evict(int userId) {
+        Entry entry = entries.remove(userId);
+        if (entry == null) return;
+        synchronized (entry) {
+            if (entry.current == null) return;
+            for (int friendId : entry.current.friendNames.keySet()) {
+                unwatch(friendId, userId);
+            }
+        }
+    }
+
+    private void unwatch(int friendId, int userId) {
+        Set<Integer> users = watchers.get(friendId);
+        if (users != null) {
+            users.remove(userId);
+        }
+    }
+
+    // --- JSON ---
+
+    /**
+     * The full list, in the original "contact_list" format plus a version.
+     */
+    public static JSONObject toJson(Snapshot snapshot) {
+        JSONArray friendsArray = new JSONArray();
+        for (Map.Entry<String, Boolean> friend : snapshot.friendsOnline.entrySet()) {
+            friendsArray.put(friendJson(friend.getKey(), friend.getValue()));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("type", "contact_list");
+        json.put("version", snapshot.version);
+        json.put("friends", friendsArray);
+        json.put("pending", new JSONArray(snapshot.pending));
+        return json;
+    }
+
+    /**
+     * What a client holding 'fromVersion' needs to get to the current version:
+     * "contact_list_not_modified", a "contact_list_diff", or (if we no longer
+     * have that version) the full list.
+     */
+    public JSONObject responseFor(int userId, long fromVersion) {
+        Entry entry = entries.get(userId);
+        if (entry == null) return null;
+
+        Snapshot from;
+        Snapshot to;
+        synchronized (entry) {
+            to = entry.current;
+            from = entry.find(fromVersion);
+        }
+
+        if (from == to) {
+            JSONObject json = new JSONObject();
+            json.put("type", "contact_list_not_modified");
+            json.put("version", to.version);
+            return json;
+        }
+        if (from == null) {
+            return toJson(to);
+        }
+        return diffJson(from, to);
+    }
+
+    private static JSONObject diffJson(Snapshot from, Snapshot to) {
+        JSONArray friendsAdded = new JSONArray();
+        JSONArray friendsRemoved = new JSONArray();
+        JSONArray presence = new JSONArray();
+
+        for (Map.Entry<String, Boolean> friend : to.friendsOnline.entrySet()) {
+            Boolean wasOnline = from.friendsOnline.get(friend.getKey());
+            if (wasOnline == null) {
+                friendsAdded.put(friendJson(friend.getKey(), friend.getValue()));
+            } else if (!wasOnline.equals(friend.getValue())) {
+                presence.put(friendJson(friend.getKey(), friend.getValue()));
+            }
+        }
+        for (String username : from.friendsOnline.keySet()) {
+            if (!to.friendsOnline.containsKey(username)) friendsRemoved.put(username);
+        }
+
+        JSONArray pendingAdded = new JSONArray();
+        JSONArray pendingRemoved = new JSONArray();
+        for (String username : to.pending) {
+            if (!from.pending.contains(username)) pendingAdded.put(username);
+        }
+        for (String username : from.pending) {
+            if (!to.pending.contains(username)) pendingRemoved.put(username);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("type", "contact_list_diff");
+        json.put("baseVersion", from.version);
+        json.put("version", to.version);
+        if (!friendsAdded.isEmpty()) json.put("friendsAdded", friendsAdded);
+        if (!friendsRemoved.isEmpty()) json.put("friendsRemoved", friendsRemoved);
+        if (!presence.isEmpty()) json.put("presence", presence);
+        if (!pendingAdded.isEmpty()) json.put("pendingAdded", pendingAdded);
+        if (!pendingRemoved.isEmpty()) json.put("pendingRemoved", pendingRemoved);
+        return json;
+    }
+
+    private static JSONObject friendJson(String username, boolean online) {
+        JSONObject userObj = new JSONObject();
+        userObj.put("username", username);
+        userObj.put("online", online);
+        return userObj;
+    }
+}
@@ -0,0 +1,158 @@
+package com.chatapp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.chatapp.DatabaseManager.ConversationSummary;
+import com.chatapp.DatabaseManager.Message;
+
+/**
+ * Inboxes (conversation summaries) of online users.
+ *
+ * Loaded from the database the first time a user asks (or at startup, for
+ * the most recently active users), then kept current
+ * from the messages and read receipts going through this server, so asking
+ * again costs nothing.
+ */
+public class ConversationCache {
+
+    // Conversations loaded per user; newer activity is added on top
+    static final int MAX_LOADED = 200;
+
+    // user_id -> (peer_id -> summary)
+    private final Map<Integer, Map<Integer, ConversationSummary>> inboxes = new ConcurrentHashMap<>();
+
+    // user_id -> changes seen while they had no inbox here, so a load that
+    // raced with one of them isn't cached (see beginLoad)
+    private final Map<Integer, Changes> changes = new ConcurrentHashMap<>();
+
+    private static final class Changes {
+        int count; // Guarded by the object itself
+    }
+
+    /**
+     * @return The user's conversations, newest first, or null if they aren't cached.
+     */
+    public List<ConversationSummary> get(int userId, int limit) {
+        Map<Integer, ConversationSummary> inbox = inboxes.get(userId);
+        if (inbox == null) return null;
+        List<ConversationSummary> conversations = new ArrayList<>(inbox.values());
+        conversations.sort(Comparator.comparingInt((ConversationSummary c) -> c.lastMessageId).reversed());
+        return conversations.size() > limit ? conversations.subList(0, limit) : conversations;
+    }
+
+    /**
+     * Caches a freshly loaded inbox. Only for loads nothing else can race
+     * with (warm-up, before the server takes connections).
+     */
+    public void put(int userId, List<ConversationSummary> conversations) {
+        inboxes.putIfAbsent(userId, toInbox(conversations));
+    }
+
+    /**
+     * Call before loading a user's inbox from the database.
+     * @return A stamp to hand to put() with the result.
+     */
+    public int beginLoad(int userId) {
+        Changes seen = changes.computeIfAbsent(userId, id -> new Changes());
+        synchronized (seen) {
+            return seen.count;
+        }
+    }
+
+    /**
+     * Caches an inbox loaded after beginLoad(), unless a message or receipt
+     * for the user came through in the meantime: the load may have missed
+     * it, and there's no inbox yet to apply it to. The next request loads again.
+     * @return True if it was cached.
+     */
+    public boolean put(int userId, List<ConversationSummary> conversations, int stamp) {
+        Changes seen = changes.get(userId);
+        if (seen == null) return false; // Evicted (went offline) during the load
+        Map<Integer, ConversationSummary> inbox = toInbox(conversations);
+        synchronized (seen) {
+            if (seen.count != stamp) return false;
+            inboxes.putIfAbsent(userId, inbox);
+            return true;
+        }
+    }
+
+    private static Map<Integer, ConversationSummary> toInbox(List<ConversationSummary> conversations) {
+        Map<Integer, ConversationSummary> inbox = new ConcurrentHashMap<>();
+        for (ConversationSummary conversation : conversations) {
+            inbox.put(conversation.peerId, conversation);
+        }
+        return inbox;
+    }
+
+    /**
+     * @return The user's inbox, or null after noting the change for any load in progress.
+     */
+    private Map<Integer, ConversationSummary> inboxOrNoteChange(int userId) {
+        Map<Integer, ConversationSummary> inbox = inboxes.get(userId);
+        if (inbox != null) return inbox;
+        Changes seen = changes.get(userId);
+        if (seen == null) return null;
+        synchronized (seen) {
+            inbox = inboxes.get(userId); // put() may have just finished
+            if (inbox == null) seen.count++;
+            return inbox;
+        }
+    }
+
+    /**
+     * Applies a new message to the inbox of one side of the conversation.
+     * @param peerUsername The other side's username, or null if we don't have it
+     *                     handy (then the inbox is reloaded next time instead).
+     * @param incoming True for the receiver's inbox (one more unread message).
+     */
+    public void onMessage(int userId, int peerId, String peerUsername, Message message, boolean incoming) {
+        Map<Integer, ConversationSummary> inbox = inboxOrNoteChange(userId);
+        if (inbox == null) return;
+
+        ConversationSummary current = inbox.get(peerId);
+        String name = peerUsername != null ? peerUsername : (current != null ? current.peerUsername : null);
+        if (name == null) {
+            inboxes.remove(userId);
+            inboxOrNoteChange(userId);
+            return;
+        }
+        // 200 code points, like LEFT(message_text, 200) in the summaries table; never splits a surrogate pair
+        String preview = message.text.codePointCount(0, message.text.length()) > 200
+                ? message.text.substring(0, message.text.offsetByCodePoints(0, 200)) : message.text;
+        inbox.merge(peerId,
+                new ConversationSummary(peerId, name, message.messageId, message.sender, preview, message.timestamp, incoming ? 1 : 0),
+                (old, next) -> {
+                    if (next.lastMessageId == old.lastMessageId) return old; // The load already saw it
+                    int unread = old.unreadCount + next.unreadCount;
+                    if (next.lastMessageId < old.lastMessageId) {
+                        return new ConversationSummary(peerId, old.peerUsername, old.lastMessageId, old.lastSender,
+                                old.lastMessageText, old.lastSentAt, unread);
+                    }
+                    return new ConversationSummary(peerId, next.peerUsername, next.lastMessageId, next.lastSender,
+                            next.lastMessageText, next.lastSentAt, unread);
+                });
+    }
+
+    /**
+     * Sets how many messages from a peer are still unread, after a read receipt was saved.
+     */
+    public void onUnreadCount(int userId, int peerId, int unreadCount) {
+        if (unreadCount < 0) return;
+        Map<Integer, ConversationSummary> inbox = inboxOrNoteChange(userId);
+        if (inbox == null) return;
+        inbox.computeIfPresent(peerId, (id, old) -> new ConversationSummary(peerId, old.peerUsername, old.lastMessageId,
+                old.lastSender, old.lastMessageText, old.lastSentAt, unreadCount));
+    }
+
+    /**
+     * Drops a user's inbox (they went offline).
+     */
+    public void evict(int userId) {
+        inboxes.remove(userId);
+        changes.remove(userId);
+    }
+}
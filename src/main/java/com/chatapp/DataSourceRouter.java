@@ -0,0 +1,220 @@
+package com.chatapp;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out JDBC connections, sending writes to the primary and reads to
+ * read replicas when there are any.
+ *
+ * Configuration (environment variables):
+ *   DB_REPLICA_URLS        comma-separated JDBC URLs of read replicas (same user/password)
+ *   DB_REPLICA_MAX_LAG_MS  replicas lagging more than this are skipped (default 1000)
+ *   DB_SSLMODE             sslmode for every connection (default "require")
+ *   DB_CONNECT_TIMEOUT_SECONDS    TCP connect timeout (default 5)
+ *   DB_LOGIN_TIMEOUT_SECONDS      limit on connecting plus authenticating (default 10)
+ *   DB_SOCKET_TIMEOUT_SECONDS     longest wait for any reply from the server (default 30)
+ *   DB_STATEMENT_TIMEOUT_MS       server-side limit on every statement (default 15000)
+ *
+ * Replica lag is polled in the background. A replica that can't be reached
+ * counts as infinitely behind, so reads simply fall back to the primary.
+ * Any server that is not in recovery reports zero lag, which lets a second
+ * plain local Postgres instance stand in for a replica during testing.
+ *
+ * Read-your-writes: after a user writes, their reads stay on the primary
+ * until every replica we'd pick has had time to replay that write.
+ */
+public class DataSourceRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(DataSourceRouter.class);
+
+    private static final long LAG_POLL_INTERVAL_MS = 1000;
+
+    // Extra time on top of the measured lag before a writer may read from a replica again
+    private static final long READ_YOUR_WRITES_MARGIN_MS = 500;
+
+    private static final String LAG_SQL =
+            "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 "
+          + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+          + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    private final String primaryUrl;
+    private final Properties props;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLagMs;
+
+    // user_id -> time (ms) of that user's last write on the primary
+    private final Map<Integer, Long> lastWriteAt = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private ScheduledExecutorService lagMonitor;
+
+    public DataSourceRouter(String primaryUrl, String user, String password) {
+        try {
+            // This line "registers" the PostgreSQL driver we added
+            Class.forName("org.postgresql.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("PostgreSQL JDBC Driver not found!", e);
+        }
+
+        this.primaryUrl = primaryUrl;
+        this.props = new Properties();
+        props.setProperty("user", user);
+        props.setProperty("password", password);
+        props.setProperty("sslmode", env("DB_SSLMODE", "require"));
+
+        // No call may wait on the database forever. The statement timeout
+        // is set per connection here rather than on every statement.
+        props.setProperty("connectTimeout", env("DB_CONNECT_TIMEOUT_SECONDS", "5"));
+        props.setProperty("loginTimeout", env("DB_LOGIN_TIMEOUT_SECONDS", "10"));
+        props.setProperty("socketTimeout", env("DB_SOCKET_TIMEOUT_SECONDS", "30"));
+        props.setProperty("options", "-c statement_timeout=" + env("DB_STATEMENT_TIMEOUT_MS", "15000"));
+
+        this.maxLagMs = Long.parseLong(env("DB_REPLICA_MAX_LAG_MS", "1000"));
+
+        String replicaUrls = env("DB_REPLICA_URLS", "");
+        for (String url : replicaUrls.split(",")) {
+            if (!url.isBlank()) {
+                replicas.add(new Replica(url.trim()));
+            }
+        }
+
+        if (!replicas.isEmpty()) {
+            log.info("Read replicas configured: {} (max lag {} ms)", replicas.size(), maxLagMs);
+            startLagMonitor();
+        }
+    }
+
+    /**
+     * A connection to the primary. Use for every write, and for reads that
+     * must see the latest data (e.g. authentication).
+     */
+    public Connection getWriteConnection() throws SQLException {
+        return DriverManager.getConnection(primaryUrl, props);
+    }
+
+    /**
+     * A connection for a read-only operation.
+     * @param userId The user the read is for, or -1 for reads that aren't about
+     *               one user (e.g. looking someone up by name). Those see writes
+     *               recorded under -1.
+     */
+    public Connection getReadConnection(int userId) throws SQLException {
+        Replica replica = pickReplica(userId);
+        if (replica != null) {
+            try {
+                return DriverManager.getConnection(replica.url, props);
+            } catch (SQLException e) {
+                log.warn("Replica unavailable, reading from primary: {}", e.getMessage());
+                replica.lagMs = Long.MAX_VALUE; // Skip it until the monitor says otherwise
+            }
+        }
+        return getWriteConnection();
+    }
+
+    /**
+     * Remembers that these users just wrote to the primary, so their
+     * own reads don't come back stale from a replica. Record -1 as well for
+     * writes that anyone's lookups must see straight away (a new user, a new room).
+     */
+    public void recordWrite(int... userIds) {
+        if (replicas.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        for (int userId : userIds) {
+            lastWriteAt.put(userId, now);
+        }
+    }
+
+    private Replica pickReplica(int userId) {
+        if (replicas.isEmpty()) return null;
+
+        long sinceWrite = Long.MAX_VALUE;
+        Long writtenAt = lastWriteAt.get(userId);
+        if (writtenAt != null) {
+            sinceWrite = System.currentTimeMillis() - writtenAt;
+        }
+
+        // Round-robin over replicas, skipping any that are too far behind
+        int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            long lag = replica.lagMs;
+            if (lag <= maxLagMs && sinceWrite > lag + READ_YOUR_WRITES_MARGIN_MS) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private void startLagMonitor() {
+        lagMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-lag-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        lagMonitor.scheduleWithFixedDelay(this::pollReplicaLag, 0, LAG_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void pollReplicaLag() {
+        long now = System.currentTimeMillis();
+        for (Replica replica : replicas) {
+            try {
+                if (replica.monitorConn == null || replica.monitorConn.isClosed()) {
+                    replica.monitorConn = DriverManager.getConnection(replica.url, props);
+                }
+                try (Statement stmt = replica.monitorConn.createStatement();
+                     ResultSet rs = stmt.executeQuery(LAG_SQL)) {
+                    rs.next();
+                    replica.lagMs = (long) rs.getDouble(1);
+                }
+            } catch (SQLException e) {
+                replica.lagMs = Long.MAX_VALUE;
+                closeQuietly(replica.monitorConn);
+                replica.monitorConn = null;
+            }
+        }
+
+        // Forget writes that are older than anything a healthy replica could still be missing
+        long horizon = maxLagMs + READ_YOUR_WRITES_MARGIN_MS;
+        lastWriteAt.values().removeIf(writtenAt -> now - writtenAt > horizon);
+    }
+
+    private static void closeQuietly(Connection conn) {
+        if (conn == null) return;
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Ignore
+        }
+    }
+
+    static String env(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return (value == null || value.isBlank()) ? defaultValue : value;
+    }
+
+    private static class Replica {
+        final String url;
+        volatile long lagMs = Long.MAX_VALUE; // Unknown until first poll
+        Connection monitorConn;
+
+        Replica(String url) {
+            this.url = url;
+        }
+    }
+}
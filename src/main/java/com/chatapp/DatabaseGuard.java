@@ -0,0 +1,229 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a stalled database from taking the whole server down with it.
+ *
+ * Every connection is taken from one of three bulkheads (auth, history,
+ * writes), so a pile-up of one kind of query can't use up the threads the
+ * others need. A call that can't get a slot quickly fails instead of queueing.
+ *
+ * In front of them sits a circuit breaker. Connection errors and timeouts
+ * count as failures; once enough happen in a row, every call fails straight
+ * away and the server runs degraded until a probe gets through again.
+ *
+ * Configuration (environment variables):
+ *   DB_BULKHEAD_AUTH      concurrent login/registration queries (default 4)
+ *   DB_BULKHEAD_HISTORY   concurrent read-only queries: history, search, inboxes, lists (default 8)
+ *   DB_BULKHEAD_WRITES    concurrent writes (default 8)
+ *   DB_BULKHEAD_WAIT_MS   how long a call may wait for a slot (default 100)
+ *   DB_BREAKER_FAILURES   failures in a row that open the breaker (default 5)
+ *   DB_BREAKER_OPEN_MS    how long it stays open before a trial call (default 10000)
+ */
+public class DatabaseGuard {
+
+    private static final Logger log = LoggerFactory.getLogger(DatabaseGuard.class);
+
+    private static final long PROBE_INTERVAL_MS = 1000;
+
+    // The queries behind login and registration
+    private static final Set<String> AUTH_METHODS = Set.of("loginUser", "registerUser");
+
+    /** Where a connection comes from, e.g. the primary or a replica. */
+    interface ConnectionSource {
+        Connection get() throws SQLException;
+    }
+
+    /** A fixed number of connections for one kind of work. */
+    public static final class Bulkhead {
+        final String name;
+        private final Semaphore permits;
+
+        Bulkhead(String name, int size) {
+            this.name = name;
+            this.permits = new Semaphore(size);
+        }
+    }
+
+    private final Bulkhead auth = new Bulkhead("auth", Integer.parseInt(DataSourceRouter.env("DB_BULKHEAD_AUTH", "4")));
+    private final Bulkhead history = new Bulkhead("history", Integer.parseInt(DataSourceRouter.env("DB_BULKHEAD_HISTORY", "8")));
+    private final Bulkhead writes = new Bulkhead("writes", Integer.parseInt(DataSourceRouter.env("DB_BULKHEAD_WRITES", "8")));
+    private final long waitMillis = Long.parseLong(DataSourceRouter.env("DB_BULKHEAD_WAIT_MS", "100"));
+
+    private final CircuitBreaker breaker;
+
+    // Told when the server goes into or comes out of degraded mode
+    private volatile Consumer<Boolean> degradedListener = degraded -> { };
+
+    private ScheduledExecutorService prober;
+
+    public DatabaseGuard() {
+        this.breaker = new CircuitBreaker("database",
+                Integer.parseInt(DataSourceRouter.env("DB_BREAKER_FAILURES", "5")),
+                Long.parseLong(DataSourceRouter.env("DB_BREAKER_OPEN_MS", "10000")),
+                open -> degradedListener.accept(open));
+    }
+
+    /**
+     * @return The bulkhead a DatabaseManager method's connection is taken from.
+     */
+    Bulkhead bulkheadFor(String method, boolean readOnly) {
+        if (AUTH_METHODS.contains(method)) return auth;
+        return readOnly ? history : writes;
+    }
+
+    /**
+     * Opens a connection through the breaker and a bulkhead. The slot is held
+     * until the connection is closed, and how the connection's statements went
+     * is reported to the breaker then.
+     * @throws SQLTransientConnectionException Straight away if the breaker is
+     *         open, or once the wait for a slot runs out.
+     */
+    Connection open(Bulkhead bulkhead, ConnectionSource source) throws SQLException {
+        boolean acquired;
+        try {
+            acquired = bulkhead.permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            throw new SQLTransientConnectionException("Too many " + bulkhead.name + " queries in progress", "53300");
+        }
+
+        if (!breaker.allowRequest()) {
+            bulkhead.permits.release();
+            throw new SQLTransientConnectionException("Database unavailable (circuit open)", "08000");
+        }
+
+        Connection conn;
+        try {
+            conn = source.get();
+        } catch (SQLException e) {
+            bulkhead.permits.release();
+            breaker.recordFailure();
+            throw e;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new GuardedConnection(conn, bulkhead));
+    }
+
+    /**
+     * @return True while the breaker is open (or half-open), i.e. the
+     *         database should be treated as unavailable.
+     */
+    public boolean isDegraded() {
+        return breaker.isOpen();
+    }
+
+    public void setDegradedListener(Consumer<Boolean> listener) {
+        this.degradedListener = listener;
+    }
+
+    /**
+     * While degraded, tries a trivial query every second, so the breaker
+     * closes as soon as the database is back even if nobody is asking for it.
+     */
+    void startProbe(ConnectionSource source) {
+        prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "database-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        prober.scheduleWithFixedDelay(() -> {
+            if (!breaker.isOpen()) return;
+            try (Connection conn = open(writes, source);
+                 Statement stmt = conn.createStatement()) {
+                stmt.execute("SELECT 1");
+            } catch (SQLException e) {
+                log.debug("Database probe failed: {}", e.getMessage());
+            }
+        }, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return True for errors that say the database is unreachable or
+     *         overloaded, as opposed to something wrong with one query.
+     */
+    static boolean isOutage(Throwable error) {
+        if (!(error instanceof SQLException)) return false;
+        String state = ((SQLException) error).getSQLState();
+        if (state == null) {
+            return error.getCause() instanceof IOException;
+        }
+        return state.startsWith("08")  // Connection exception
+            || state.startsWith("53")  // Insufficient resources (e.g. too many connections)
+            || state.startsWith("57"); // Operator intervention, including statement_timeout cancels
+    }
+
+    /**
+     * Watches a connection and its statements for outage errors, and gives
+     * back its bulkhead slot on close.
+     */
+    private final class GuardedConnection implements InvocationHandler {
+        private final Connection target;
+        private final Bulkhead bulkhead;
+        private boolean failed;
+        private boolean closed;
+
+        GuardedConnection(Connection target, Bulkhead bulkhead) {
+            this.target = target;
+            this.bulkhead = bulkhead;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("close")) {
+                if (closed) return null;
+                closed = true;
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    bulkhead.permits.release();
+                    if (failed) {
+                        breaker.recordFailure();
+                    } else {
+                        breaker.recordSuccess();
+                    }
+                }
+            }
+
+            Object result = call(target, method, args);
+            if (result instanceof Statement) {
+                // createStatement, prepareStatement, prepareCall: watch the queries too
+                return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { method.getReturnType() },
+                        (statementProxy, statementMethod, statementArgs) -> call(result, statementMethod, statementArgs));
+            }
+            return result;
+        }
+
+        private Object call(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                if (isOutage(e.getCause())) failed = true;
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -1,60 +1,110 @@
 package com.chatapp;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties; // New Import
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.mindrot.jbcrypt.BCrypt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DatabaseManager {
 
+    private static final Logger log = LoggerFactory.getLogger(DatabaseManager.class);
+
     // --- Database Connection Details (FIXED) ---
     // We parse the details from your Render string to avoid errors
     
-    private static final String DB_HOST = "dpg-d42enk8dl3ps7398pp8g-a.singapore-postgres.render.com";
-    private static final String DB_NAME = "jfs_chat_database";
-    private static final String DB_USER = "jfs_chat_database_user";
-    private static final String DB_PASSWORD = "jYM9lrOqHX72FtzXLVLKGbr1tb33N1vI"; // From your log
+    // Each one can be overridden with an environment variable of the same name
+    private static final String DB_HOST = DataSourceRouter.env("DB_HOST", "dpg-d42enk8dl3ps7398pp8g-a.singapore-postgres.render.com");
+    private static final String DB_NAME = DataSourceRouter.env("DB_NAME", "jfs_chat_database");
+    private static final String DB_USER = DataSourceRouter.env("DB_USER", "jfs_chat_database_user");
+    private static final String DB_PASSWORD = DataSourceRouter.env("DB_PASSWORD", "jYM9lrOqHX72FtzXLVLKGbr1tb33N1vI"); // From your log
     
     // Build the JDBC URL *without* user/pass
     private static final String DB_URL = "jdbc:postgresql://" + DB_HOST + "/" + DB_NAME;
 
+    // Rows fetched per round trip by the bulk loads that warm the caches at startup
+    private static final int BULK_FETCH_SIZE = 10_000;
+    
+    // Archive segments read per round trip when searching
+    private static final int ARCHIVE_SEARCH_BATCH = 32;
+
 
+    // Routes writes to the primary and reads to replicas (if configured)
+    private final DataSourceRouter router =
+            new DataSourceRouter(DB_URL, DB_USER, DB_PASSWORD);
+    
+    // Bulkheads and a circuit breaker in front of every connection
+    private final DatabaseGuard guard = new DatabaseGuard();
+    
+    public DatabaseManager() {
+        guard.startProbe(router::getWriteConnection);
+    }
+    
     /**
-     * Attempts to establish a connection to the PostgreSQL database.
+     * @return True while the database is treated as unavailable (the circuit
+     *         breaker is open), so callers can fail fast instead of trying.
      */
-    private Connection connect() throws SQLException {
-        try {
-            // This line "registers" the PostgreSQL driver we added
-            Class.forName("org.postgresql.Driver");
-        } catch (ClassNotFoundException e) {
-            System.err.println("PostgreSQL JDBC Driver not found!");
-            e.printStackTrace();
-            return null;
-        }
-        
-        // This is the new, safer way to connect
-        // We pass user, pass, and sslmode as properties
-        Properties props = new Properties();
-        props.setProperty("user", DB_USER);
-        props.setProperty("password", DB_PASSWORD);
-        props.setProperty("sslmode", "require");
+    public boolean isDegraded() {
+        return guard.isDegraded();
+    }
+    
+    /**
+     * @param listener Told true when the database becomes unavailable, and false once it's back.
+     */
+    public void setDegradedListener(Consumer<Boolean> listener) {
+        guard.setDegradedListener(listener);
+    }
 
-        return DriverManager.getConnection(DB_URL, props);
+    /**
+     * Opens a connection to the primary database. Use for writes.
+     * @param method The calling method, for the DatabaseCall JFR event.
+     */
+    private Connection connect(String method) throws SQLException {
+        DatabaseGuard.Bulkhead bulkhead = guard.bulkheadFor(method, false);
+        if (!ChatEvents.ENABLED) {
+            return guard.open(bulkhead, router::getWriteConnection);
+        }
+        ChatEvents.DatabaseCall event = ChatEvents.beginDatabaseCall(method, false);
+        return ChatEvents.track(event, guard.open(bulkhead, router::getWriteConnection));
+    }
+    
+    /**
+     * Opens a connection for a read-only query, on a replica when possible.
+     * @param method The calling method, for the DatabaseCall JFR event.
+     * @param userId The user whose own writes this read must see, or -1.
+     */
+    private Connection connectForRead(String method, int userId) throws SQLException {
+        DatabaseGuard.Bulkhead bulkhead = guard.bulkheadFor(method, true);
+        if (!ChatEvents.ENABLED) {
+            return guard.open(bulkhead, () -> router.getReadConnection(userId));
+        }
+        ChatEvents.DatabaseCall event = ChatEvents.beginDatabaseCall(method, true);
+        return ChatEvents.track(event, guard.open(bulkhead, () -> router.getReadConnection(userId)));
     }
     
     /**
      * Initializes the database.
      * Call this once when the server starts to ensure tables exist.
+     * @return False if the tables or a migration couldn't be applied. Some
+     *         statements rely on what the migrations create (savePrivateMessage's
+     *         ON CONFLICT needs migration 8's unique index), so don't serve then.
      */
-    public void initializeDatabase() {
+    public boolean initializeDatabase() {
         // SQL for 'users' table (PostgreSQL syntax)
         String createUserTableSQL = "CREATE TABLE IF NOT EXISTS users ("
                 + "user_id SERIAL PRIMARY KEY," // SERIAL is PostgreSQL's AUTO_INCREMENT
@@ -82,17 +132,20 @@ public class DatabaseManager {
                 + "CONSTRAINT unique_friendship UNIQUE (user_one_id, user_two_id)" // Unique constraint
                 + ");";
         
-        try (Connection conn = connect();
+        try (Connection conn = connect("initializeDatabase");
              Statement stmt = conn.createStatement()) {
             
             stmt.execute(createUserTableSQL);
             stmt.execute(createMessagesTableSQL);
             stmt.execute(createFriendshipsTableSQL); 
-            System.out.println("Database tables are ready.");
+            log.info("Database tables are ready.");
+            // Bring existing deployments up to date (indexes etc.)
+            new SchemaMigrator().migrate(conn);
+            return true;
             
         } catch (SQLException e) {
-            System.err.println("Error initializing database: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error initializing database: {}", e.getMessage(), e);
+            return false;
         }
     }
 
@@ -101,62 +154,72 @@ public class DatabaseManager {
      */
     public boolean registerUser(String username, String password) {
         String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt(12));
-        String sql = "INSERT INTO users(username, password_hash) VALUES(?, ?)";
+        String sql = "INSERT INTO users(username, password_hash) VALUES(?, ?) RETURNING user_id";
 
-        try (Connection conn = connect();
+        try (Connection conn = connect("registerUser");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, username);
             pstmt.setString(2, hashedPassword);
-            pstmt.executeUpdate();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                // Lookups by name (-1) and the user's own reads must find them right away
+                router.recordWrite(-1, rs.getInt("user_id"));
+            }
             
-            System.out.println("New user registered: " + username);
+            log.info("New user registered: {}", username);
             return true;
             
         } catch (SQLException e) {
             // PostgreSQL unique violation code
             if (e.getSQLState().equals("23505")) { 
-                System.out.println("Registration failed: Username already exists.");
+                log.warn("Registration failed: Username already exists.");
             } else {
-                System.err.println("Error registering user: " + e.getMessage());
+                log.error("Error registering user: {}", e.getMessage());
             }
             return false;
         }
     }
 
+    // loginUser() result when the database couldn't be asked (busy or down)
+    public static final int LOGIN_UNAVAILABLE = -2;
+
     /**
      * Logs in a user.
-     * @return The user's user_id if successful, or -1 if login fails.
+     * The hash is checked after the connection is back in the pool, since
+     * BCrypt takes far longer than the query.
+     * @return The user's user_id if successful, -1 if the username or password
+     *         is wrong, or LOGIN_UNAVAILABLE if the database couldn't be asked.
      */
     public int loginUser(String username, String password) {
         String sql = "SELECT user_id, password_hash FROM users WHERE username = ?";
+        int userId;
+        String storedHash;
 
-        try (Connection conn = connect();
+        try (Connection conn = connect("loginUser");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, username);
             
             try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    String storedHash = rs.getString("password_hash");
-                    
-                    if (BCrypt.checkpw(password, storedHash)) {
-                        int userId = rs.getInt("user_id");
-                        System.out.println("User login successful: " + username + " (ID: " + userId + ")");
-                        return userId;
-                    } else {
-                        System.out.println("User login failed: Invalid password.");
-                        return -1; 
-                    }
-                } else {
-                    System.out.println("User login failed: User not found.");
+                if (!rs.next()) {
+                    log.warn("User login failed: User not found.");
                     return -1;
                 }
+                userId = rs.getInt("user_id");
+                storedHash = rs.getString("password_hash");
             }
         } catch (SQLException e) {
-            System.err.println("Error logging in user: " + e.getMessage());
+            log.error("Error logging in user: {}", e.getMessage());
+            return LOGIN_UNAVAILABLE;
+        }
+        
+        if (!BCrypt.checkpw(password, storedHash)) {
+            log.warn("User login failed: Invalid password.");
             return -1;
         }
+        log.info("User login successful: {} (ID: {})", username, userId);
+        return userId;
     }
     
     /**
@@ -166,7 +229,7 @@ public class DatabaseManager {
         List<String> usernames = new ArrayList<>();
         String sql = "SELECT username FROM users ORDER BY username ASC";
         
-        try (Connection conn = connect();
+        try (Connection conn = connectForRead("getAllUsernames", -1);
              PreparedStatement pstmt = conn.prepareStatement(sql);
              ResultSet rs = pstmt.executeQuery()) {
             
@@ -175,18 +238,44 @@ public class DatabaseManager {
             }
             
         } catch (SQLException e) {
-            System.err.println("Error getting all usernames: " + e.getMessage());
+            log.error("Error getting all usernames: {}", e.getMessage());
         }
         return usernames;
     }
-    
+
+    /**
+     * Loads every user's ID and name in one pass, for warming the user directory.
+     * @return user_id -> username
+     */
+    public Map<Integer, String> getAllUsers() {
+        Map<Integer, String> users = new HashMap<>();
+        String sql = "SELECT user_id, username FROM users";
+
+        try (Connection conn = connectForRead("getAllUsers", -1)) {
+            conn.setAutoCommit(false); // Lets the driver stream rows instead of buffering them all
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setFetchSize(BULK_FETCH_SIZE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        users.put(rs.getInt("user_id"), rs.getString("username"));
+                    }
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            log.error("Error loading users: {}", e.getMessage());
+            return null;
+        }
+        return users;
+    }
+
     /**
      * Finds a user's ID from their username.
      */
     public int getUserId(String username) {
         String sql = "SELECT user_id FROM users WHERE username = ?";
         
-        try (Connection conn = connect();
+        try (Connection conn = connectForRead("getUserId", -1);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setString(1, username);
@@ -197,36 +286,99 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting user ID: " + e.getMessage());
+            log.error("Error getting user ID: {}", e.getMessage());
         }
         return -1; // User not found
     }
+
+    /**
+     * Finds a user's username from their ID.
+     * @return The username, or null if there is no such user.
+     */
+    public String getUsername(int userId) {
+        String sql = "SELECT username FROM users WHERE user_id = ?";
+        
+        try (Connection conn = connectForRead("getUsername", -1);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, userId);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getString("username");
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error getting username: {}", e.getMessage());
+        }
+        return null;
+    }
     
     /**
      * Saves a new private message to the database.
      * @return The new Message object with its timestamp, or null if failed.
      */
     public Message savePrivateMessage(int senderId, int receiverId, String message) {
-        String sql = "INSERT INTO private_messages (sender_id, receiver_id, message_text) VALUES (?, ?, ?)";
+        return savePrivateMessage(senderId, receiverId, message, null);
+    }
+    
+    /**
+     * Saves a new private message, at most once per client message id.
+     * If this sender already saved a message with the same clientMessageId
+     * (a retry), nothing is inserted and the original comes back marked as a duplicate.
+     * Both users' conversation summaries are updated in the same statement.
+     * @param clientMessageId The client's id for this send, or null.
+     * @return The saved (or original) Message, or null if failed.
+     */
+    public Message savePrivateMessage(int senderId, int receiverId, String message, String clientMessageId) {
+        String sql = "WITH ins AS ("
+                   + "INSERT INTO private_messages (sender_id, receiver_id, message_text, client_message_id) VALUES (?, ?, ?, ?) "
+                   + "ON CONFLICT (sender_id, client_message_id) WHERE client_message_id IS NOT NULL DO NOTHING "
+                   + "RETURNING message_id, sender_id, receiver_id, message_text, sent_at), "
+                   // One summary row per side; only the receiver gets an unread message
+                   + "summary AS ("
+                   + "INSERT INTO conversation_summaries AS cs "
+                   + "(user_id, peer_id, last_message_id, last_sender_id, last_message_text, last_sent_at, unread_count) "
+                   + "SELECT sender_id, receiver_id, message_id, sender_id, LEFT(message_text, 200), sent_at, 0 FROM ins "
+                   + "UNION ALL "
+                   + "SELECT receiver_id, sender_id, message_id, sender_id, LEFT(message_text, 200), sent_at, 1 FROM ins "
+                   + "WHERE receiver_id <> sender_id " // Notes to self are one row
+                   + "ON CONFLICT (user_id, peer_id) DO UPDATE SET "
+                   + "last_message_id = GREATEST(cs.last_message_id, EXCLUDED.last_message_id), "
+                   + "last_sender_id = CASE WHEN EXCLUDED.last_message_id > cs.last_message_id THEN EXCLUDED.last_sender_id ELSE cs.last_sender_id END, "
+                   + "last_message_text = CASE WHEN EXCLUDED.last_message_id > cs.last_message_id THEN EXCLUDED.last_message_text ELSE cs.last_message_text END, "
+                   + "last_sent_at = CASE WHEN EXCLUDED.last_message_id > cs.last_message_id THEN EXCLUDED.last_sent_at ELSE cs.last_sent_at END, "
+                   + "unread_count = cs.unread_count + EXCLUDED.unread_count) "
+                   + "SELECT message_id FROM ins";
+        String existingSql = "SELECT message_id FROM private_messages WHERE sender_id = ? AND client_message_id = ?";
         
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (Connection conn = connect("savePrivateMessage");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setInt(1, senderId);
             pstmt.setInt(2, receiverId);
             pstmt.setString(3, message);
-            int affectedRows = pstmt.executeUpdate();
+            pstmt.setString(4, clientMessageId);
 
-            if (affectedRows > 0) {
-                try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
-                    if (generatedKeys.next()) {
-                        int messageId = generatedKeys.getInt(1); 
-                        return getMessageById(messageId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    router.recordWrite(senderId, receiverId); // Both inboxes changed
+                    return getMessageById(conn, rs.getInt("message_id"), false); // Same connection, so we read our own write
+                }
+            }
+            
+            // Nothing inserted: a retry of something we already have
+            try (PreparedStatement existingStmt = conn.prepareStatement(existingSql)) {
+                existingStmt.setInt(1, senderId);
+                existingStmt.setString(2, clientMessageId);
+                try (ResultSet rs = existingStmt.executeQuery()) {
+                    if (rs.next()) {
+                        return getMessageById(conn, rs.getInt("message_id"), true);
                     }
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error saving private message: " + e.getMessage());
+            log.error("Error saving private message: {}", e.getMessage());
         }
         return null; // Failed to save
     }
@@ -235,14 +387,13 @@ public class DatabaseManager {
     /**
      * Helper method to get a single message's details by its ID.
      */
-    private Message getMessageById(int messageId) throws SQLException {
-        String sql = "SELECT m.message_text, u.username AS sender_username, m.sent_at "
+    private Message getMessageById(Connection conn, int messageId, boolean duplicate) throws SQLException {
+        String sql = "SELECT m.message_id, m.message_text, u.username AS sender_username, m.sent_at, m.client_message_id "
                    + "FROM private_messages m "
                    + "JOIN users u ON m.sender_id = u.user_id "
                    + "WHERE m.message_id = ?";
         
-        try (Connection conn = connect();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setInt(1, messageId);
             try (ResultSet rs = pstmt.executeQuery()) {
@@ -250,7 +401,8 @@ public class DatabaseManager {
                     String sender = rs.getString("sender_username");
                     String text = rs.getString("message_text");
                     Timestamp timestamp = rs.getTimestamp("sent_at");
-                    return new Message(sender, text, timestamp);
+                    return new Message(rs.getInt("message_id"), sender, null, text, timestamp,
+                            rs.getString("client_message_id"), duplicate);
                 }
             }
         }
@@ -260,36 +412,613 @@ public class DatabaseManager {
     
     /**
      * Retrieves the chat history between two users.
+     * Reads through to the archive, so this is everything ever sent.
      */
     public List<Message> getMessageHistory(int userId1, int userId2) {
-        List<Message> history = new ArrayList<>();
-        String sql = "SELECT m.message_text, u.username AS sender_username, m.sent_at "
+        return getMessageHistoryPage(userId1, userId2, 0, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Retrieves one page of chat history between two users, oldest message first.
+     * Recent messages come from the hot table; once those run out, older ones
+     * come from the compressed archive segments, so callers can't tell the difference.
+     * @param beforeMessageId Only return messages older than this, or 0 for the newest.
+     * @param limit Maximum number of messages.
+     */
+    public List<Message> getMessageHistoryPage(int userId1, int userId2, int beforeMessageId, int limit) {
+        int userLow = Math.min(userId1, userId2);
+        int userHigh = Math.max(userId1, userId2);
+        List<Message> page = new ArrayList<>(); // Newest first until the end
+        
+        String sql = "SELECT m.message_id, m.message_text, u.username AS sender_username, m.sent_at "
                    + "FROM private_messages m "
                    + "JOIN users u ON m.sender_id = u.user_id "
-                   + "WHERE (m.sender_id = ? AND m.receiver_id = ?) " 
-                   + "OR (m.sender_id = ? AND m.receiver_id = ?) "
-                   + "ORDER BY m.sent_at ASC";
+                   + "WHERE LEAST(m.sender_id, m.receiver_id) = ? " // Normalized conversation key,
+                   + "AND GREATEST(m.sender_id, m.receiver_id) = ? " // matches idx_private_messages_conversation
+                   + "AND (? = 0 OR m.message_id < ?) "
+                   + "ORDER BY m.message_id DESC LIMIT ?";
+
+        try (Connection conn = connectForRead("getMessageHistoryPage", userId1)) {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, userLow);
+                pstmt.setInt(2, userHigh);
+                pstmt.setInt(3, beforeMessageId);
+                pstmt.setInt(4, beforeMessageId);
+                pstmt.setInt(5, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        String sender = rs.getString("sender_username");
+                        String text = rs.getString("message_text");
+                        Timestamp timestamp = rs.getTimestamp("sent_at");
+                        page.add(new Message(rs.getInt("message_id"), sender, text, timestamp));
+                    }
+                }
+            }
+            
+            // The hot table ran out; carry on into the archive
+            if (page.size() < limit) {
+                int before = page.isEmpty() ? beforeMessageId : page.get(page.size() - 1).messageId;
+                readArchivedHistory(conn, userLow, userHigh, before, limit - page.size(), page);
+            }
+        } catch (SQLException e) {
+            log.error("Error loading message history: {}", e.getMessage());
+        }
+        
+        Collections.reverse(page);
+        return page;
+    }
+    
+    /**
+     * Adds up to 'limit' archived messages older than 'beforeMessageId' to 'page', newest first.
+     * Segments are fetched one at a time, so we only decompress what the page needs.
+     */
+    private void readArchivedHistory(Connection conn, int userLow, int userHigh, int beforeMessageId,
+                                     int limit, List<Message> page) throws SQLException {
+        String sql = "SELECT first_message_id, payload FROM private_message_archive "
+                   + "WHERE user_low = ? AND user_high = ? AND (? = 0 OR first_message_id < ?) "
+                   + "ORDER BY last_message_id DESC LIMIT 1";
+        
+        Map<Integer, String> names = null;
+        int before = beforeMessageId;
+        int added = 0;
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            while (added < limit) {
+                pstmt.setInt(1, userLow);
+                pstmt.setInt(2, userHigh);
+                pstmt.setInt(3, before);
+                pstmt.setInt(4, before);
+                
+                List<MessageArchiver.ArchivedMessage> segment;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) return; // Reached the very first message
+                    segment = MessageArchiver.decode(rs.getBytes("payload"));
+                    before = rs.getInt("first_message_id");
+                }
+                if (names == null) {
+                    names = getUsernames(conn, List.of(userLow, userHigh));
+                }
+                
+                // Segments are stored oldest first
+                for (int i = segment.size() - 1; i >= 0 && added < limit; i--) {
+                    MessageArchiver.ArchivedMessage msg = segment.get(i);
+                    if (beforeMessageId != 0 && msg.messageId >= beforeMessageId) continue;
+                    page.add(new Message(msg.messageId, names.get(msg.senderId), msg.text, new Timestamp(msg.sentAtMillis)));
+                    added++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Looks up usernames for a handful of user IDs in one query.
+     */
+    private Map<Integer, String> getUsernames(Connection conn, Collection<Integer> userIds) throws SQLException {
+        Map<Integer, String> names = new HashMap<>();
+        String sql = "SELECT user_id, username FROM users WHERE user_id = ANY(?)";
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setArray(1, conn.createArrayOf("integer", userIds.toArray()));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    names.put(rs.getInt("user_id"), rs.getString("username"));
+                }
+            }
+        }
+        return names;
+    }
+    
+    
+    // --- CONVERSATIONS ---
+    
+    /**
+     * A user's most recent conversations, newest first, from the
+     * precomputed summaries (one index range scan, no message scans).
+     * @return The conversations, or null on error.
+     */
+    public List<ConversationSummary> getConversations(int userId, int limit) {
+        List<ConversationSummary> conversations = new ArrayList<>();
+        String sql = "SELECT cs.peer_id, p.username AS peer_username, cs.last_message_id, "
+                   + "s.username AS sender_username, cs.last_message_text, cs.last_sent_at, cs.unread_count "
+                   + "FROM conversation_summaries cs "
+                   + "JOIN users p ON p.user_id = cs.peer_id "
+                   + "JOIN users s ON s.user_id = cs.last_sender_id "
+                   + "WHERE cs.user_id = ? ORDER BY cs.last_message_id DESC LIMIT ?";
+        
+        try (Connection conn = connectForRead("getConversations", userId);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, limit);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    conversations.add(new ConversationSummary(rs.getInt("peer_id"), rs.getString("peer_username"),
+                            rs.getInt("last_message_id"), rs.getString("sender_username"), rs.getString("last_message_text"),
+                            rs.getTimestamp("last_sent_at"), rs.getInt("unread_count")));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error getting conversations: {}", e.getMessage());
+            return null;
+        }
+        return conversations;
+    }
 
-        try (Connection conn = connect();
+    /**
+     * Loads the inboxes of the users with the most recent conversations, for
+     * warming the conversation cache before they reconnect.
+     * @param users How many users to load.
+     * @param perUser Conversations per user, newest first.
+     * @return user_id -> conversations, or null on error.
+     */
+    public Map<Integer, List<ConversationSummary>> getRecentConversations(int users, int perUser) {
+        Map<Integer, List<ConversationSummary>> inboxes = new HashMap<>();
+        String sql = "WITH active AS ("
+                   + "SELECT user_id FROM conversation_summaries GROUP BY user_id "
+                   + "ORDER BY MAX(last_message_id) DESC LIMIT ?) "
+                   + "SELECT cs.user_id, cs.peer_id, p.username AS peer_username, cs.last_message_id, "
+                   + "s.username AS sender_username, cs.last_message_text, cs.last_sent_at, cs.unread_count "
+                   + "FROM active a "
+                   // Each user's newest conversations come straight off (user_id, last_message_id DESC)
+                   + "CROSS JOIN LATERAL (SELECT * FROM conversation_summaries c WHERE c.user_id = a.user_id "
+                   + "ORDER BY c.last_message_id DESC LIMIT ?) cs "
+                   + "JOIN users p ON p.user_id = cs.peer_id "
+                   + "JOIN users s ON s.user_id = cs.last_sender_id";
+
+        try (Connection conn = connectForRead("getRecentConversations", -1)) {
+            conn.setAutoCommit(false); // Lets the driver stream rows instead of buffering them all
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, users);
+                pstmt.setInt(2, perUser);
+                pstmt.setFetchSize(BULK_FETCH_SIZE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        inboxes.computeIfAbsent(rs.getInt("user_id"), id -> new ArrayList<>())
+                               .add(new ConversationSummary(rs.getInt("peer_id"), rs.getString("peer_username"),
+                                       rs.getInt("last_message_id"), rs.getString("sender_username"),
+                                       rs.getString("last_message_text"), rs.getTimestamp("last_sent_at"),
+                                       rs.getInt("unread_count")));
+                    }
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            log.error("Error loading recent conversations: {}", e.getMessage());
+            return null;
+        }
+        return inboxes;
+    }
+    
+    
+    // --- RECEIPTS ---
+    
+    /**
+     * Saves a batch of receipts in one statement. Marks only ever move forward,
+     * and reading a message implies it was delivered. Marks are capped at the
+     * newest message in the conversation, so a made-up id from a client can't
+     * push them past messages that haven't been sent yet.
+     * @param receipts Each entry is {userId, peerId, deliveredUpTo, readUpTo}.
+     * @return The stored state of every row touched (which may be further
+     *         along than what was passed in), or null if the write failed.
+     */
+    public List<Receipt> saveReceipts(List<int[]> receipts) {
+        List<Receipt> saved = new ArrayList<>();
+        if (receipts.isEmpty()) return saved;
+        
+        String sql = "WITH up AS ("
+                   + "INSERT INTO conversation_read_state AS s (user_id, peer_id, last_delivered_message_id, last_read_message_id) "
+                   + "SELECT r.user_id, r.peer_id, LEAST(GREATEST(r.delivered_up_to, r.read_up_to), n.newest), LEAST(r.read_up_to, n.newest) "
+                   + "FROM unnest(?::int[], ?::int[], ?::int[], ?::int[]) AS r(user_id, peer_id, delivered_up_to, read_up_to) "
+                   // Newest message the peer sent (through the conversation key index), or the newest archived one
+                   + "CROSS JOIN LATERAL (SELECT GREATEST("
+                   + "(SELECT MAX(m.message_id) FROM private_messages m "
+                   + "WHERE LEAST(m.sender_id, m.receiver_id) = LEAST(r.user_id, r.peer_id) "
+                   + "AND GREATEST(m.sender_id, m.receiver_id) = GREATEST(r.user_id, r.peer_id) "
+                   + "AND m.sender_id = r.peer_id), "
+                   + "(SELECT MAX(a.last_message_id) FROM private_message_archive a "
+                   + "WHERE a.user_low = LEAST(r.user_id, r.peer_id) AND a.user_high = GREATEST(r.user_id, r.peer_id)), "
+                   + "0) AS newest) n "
+                   + "WHERE r.user_id <> r.peer_id "
+                   + "ON CONFLICT (user_id, peer_id) DO UPDATE SET "
+                   + "last_delivered_message_id = GREATEST(s.last_delivered_message_id, EXCLUDED.last_delivered_message_id), "
+                   + "last_read_message_id = GREATEST(s.last_read_message_id, EXCLUDED.last_read_message_id), "
+                   + "updated_at = CURRENT_TIMESTAMP "
+                   + "RETURNING s.user_id, s.peer_id, s.last_delivered_message_id, s.last_read_message_id), "
+                   // Whatever is past the new read mark is still unread
+                   + "unread AS ("
+                   + "UPDATE conversation_summaries cs SET unread_count = ("
+                   + "SELECT COUNT(*) FROM private_messages m "
+                   + "WHERE LEAST(m.sender_id, m.receiver_id) = LEAST(up.user_id, up.peer_id) "
+                   + "AND GREATEST(m.sender_id, m.receiver_id) = GREATEST(up.user_id, up.peer_id) "
+                   + "AND m.sender_id = up.peer_id AND m.message_id > up.last_read_message_id) "
+                   + "FROM up WHERE cs.user_id = up.user_id AND cs.peer_id = up.peer_id "
+                   + "RETURNING cs.user_id, cs.peer_id, cs.unread_count) "
+                   + "SELECT up.*, u.username, COALESCE(unread.unread_count, -1) AS unread_count FROM up "
+                   + "JOIN users u ON u.user_id = up.user_id "
+                   + "LEFT JOIN unread ON unread.user_id = up.user_id AND unread.peer_id = up.peer_id";
+        
+        Integer[] userIds = new Integer[receipts.size()];
+        Integer[] peerIds = new Integer[receipts.size()];
+        Integer[] delivered = new Integer[receipts.size()];
+        Integer[] read = new Integer[receipts.size()];
+        for (int i = 0; i < receipts.size(); i++) {
+            int[] receipt = receipts.get(i);
+            userIds[i] = receipt[0];
+            peerIds[i] = receipt[1];
+            delivered[i] = receipt[2];
+            read[i] = receipt[3];
+        }
+        
+        try (Connection conn = connect("saveReceipts");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
-            pstmt.setInt(1, userId1);
-            pstmt.setInt(2, userId2);
-            pstmt.setInt(3, userId2);
-            pstmt.setInt(4, userId1);
+            pstmt.setArray(1, conn.createArrayOf("integer", userIds));
+            pstmt.setArray(2, conn.createArrayOf("integer", peerIds));
+            pstmt.setArray(3, conn.createArrayOf("integer", delivered));
+            pstmt.setArray(4, conn.createArrayOf("integer", read));
             
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    String sender = rs.getString("sender_username");
-                    String text = rs.getString("message_text");
-                    Timestamp timestamp = rs.getTimestamp("sent_at");
-                    history.add(new Message(sender, text, timestamp));
+                    router.recordWrite(rs.getInt("user_id"), rs.getInt("peer_id"));
+                    saved.add(new Receipt(rs.getInt("user_id"), rs.getString("username"), rs.getInt("peer_id"),
+                            rs.getInt("last_delivered_message_id"), rs.getInt("last_read_message_id"), rs.getInt("unread_count")));
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error loading message history: " + e.getMessage());
+            log.error("Error saving receipts: {}", e.getMessage());
+            return null;
+        }
+        return saved;
+    }
+    
+    /**
+     * How far a user has received and read another user's messages.
+     * @return {deliveredUpTo, readUpTo}, both 0 if nothing was ever acknowledged.
+     */
+    public int[] getReadState(int userId, int peerId) {
+        String sql = "SELECT last_delivered_message_id, last_read_message_id FROM conversation_read_state "
+                   + "WHERE user_id = ? AND peer_id = ?";
+        
+        try (Connection conn = connectForRead("getReadState", peerId); // The peer is the one who asks
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, userId);
+            pstmt.setInt(2, peerId);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new int[] { rs.getInt("last_delivered_message_id"), rs.getInt("last_read_message_id") };
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error getting read state: {}", e.getMessage());
+        }
+        return new int[] { 0, 0 };
+    }
+    
+    
+    // --- ATTACHMENTS ---
+    
+    /**
+     * Records a fully uploaded, verified attachment.
+     * @return The new attachment_id, or -1 on error.
+     */
+    public int saveAttachment(int uploaderId, int receiverId, String fileName, long size, String sha256) {
+        String sql = "INSERT INTO attachments (uploader_id, receiver_id, file_name, size_bytes, sha256) "
+                   + "VALUES (?, ?, ?, ?, ?) RETURNING attachment_id";
+        
+        try (Connection conn = connect("saveAttachment");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, uploaderId);
+            pstmt.setInt(2, receiverId);
+            pstmt.setString(3, fileName);
+            pstmt.setLong(4, size);
+            pstmt.setString(5, sha256);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    router.recordWrite(uploaderId);
+                    return rs.getInt("attachment_id");
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error saving attachment: {}", e.getMessage());
+        }
+        return -1;
+    }
+    
+    /**
+     * @return The attachment's metadata, or null if there is no such attachment.
+     */
+    public Attachment getAttachment(int attachmentId) {
+        String sql = "SELECT attachment_id, uploader_id, receiver_id, file_name, size_bytes, sha256 "
+                   + "FROM attachments WHERE attachment_id = ?";
+        
+        try (Connection conn = connectForRead("getAttachment", -1);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, attachmentId);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new Attachment(rs.getInt("attachment_id"), rs.getInt("uploader_id"), rs.getInt("receiver_id"),
+                            rs.getString("file_name"), rs.getLong("size_bytes"), rs.getString("sha256"));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error getting attachment: {}", e.getMessage());
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Full-text search over the messages a user sent or received, newest first.
+     * Uses the GIN index on to_tsvector('simple', message_text), so it never scans the table.
+     * Archived messages are found through the segments' own search index.
+     * Archiving goes one conversation at a time, so archived messages can be
+     * newer than hot ones from other conversations; both are merged by id.
+     * @param beforeMessageId Only return messages older than this (for paging), or 0 for the newest.
+     * @param limit Maximum number of results.
+     */
+    public List<Message> searchMessages(int userId, String query, int beforeMessageId, int limit) {
+        List<Message> results = new ArrayList<>();
+        String sql = "SELECT m.message_id, m.message_text, m.sent_at, "
+                   + "s.username AS sender_username, r.username AS receiver_username "
+                   + "FROM private_messages m "
+                   + "JOIN users s ON m.sender_id = s.user_id "
+                   + "JOIN users r ON m.receiver_id = r.user_id "
+                   + "WHERE to_tsvector('simple', m.message_text) @@ plainto_tsquery('simple', ?) "
+                   + "AND (m.sender_id = ? OR m.receiver_id = ?) "
+                   + "AND (? = 0 OR m.message_id < ?) "
+                   + "ORDER BY m.message_id DESC LIMIT ?";
+        
+        try (Connection conn = connectForRead("searchMessages", userId)) {
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, query);
+                pstmt.setInt(2, userId);
+                pstmt.setInt(3, userId);
+                pstmt.setInt(4, beforeMessageId);
+                pstmt.setInt(5, beforeMessageId);
+                pstmt.setInt(6, limit);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        results.add(new Message(rs.getInt("message_id"), rs.getString("sender_username"),
+                                rs.getString("receiver_username"), rs.getString("message_text"), rs.getTimestamp("sent_at")));
+                    }
+                }
+            }
+            
+            // With a full page of hot hits, only archived messages newer than the last one can get in
+            int floor = results.size() == limit ? results.get(results.size() - 1).messageId : 0;
+            List<Message> archived = searchArchive(conn, userId, query, beforeMessageId, floor, limit);
+            if (!archived.isEmpty()) {
+                Map<Integer, Message> merged = new HashMap<>();
+                for (Message msg : results) merged.put(msg.messageId, msg);
+                for (Message msg : archived) merged.putIfAbsent(msg.messageId, msg); // Archived between the two queries
+                results = new ArrayList<>(merged.values());
+                results.sort((a, b) -> Integer.compare(b.messageId, a.messageId));
+                if (results.size() > limit) results.subList(limit, results.size()).clear();
+            }
+        } catch (SQLException e) {
+            log.error("Error searching messages: {}", e.getMessage());
+        }
+        return results;
+    }
+    
+    /**
+     * Finds the newest 'limit' archived matches between 'floorMessageId' and
+     * 'beforeMessageId' (both exclusive, 0 for no bound), newest first.
+     *
+     * The segment index narrows things down to segments containing every term;
+     * the messages inside are then checked one by one. A segment's terms come
+     * from all of its messages together, so a segment can match with no single
+     * message matching. Segments are read newest first, a batch at a time,
+     * until the next one can't hold anything newer than the hits we have.
+     */
+    private List<Message> searchArchive(Connection conn, int userId, String query, int beforeMessageId,
+                                        int floorMessageId, int limit) throws SQLException {
+        String sql = "SELECT payload, last_message_id FROM private_message_archive "
+                   + "WHERE search_tsv @@ plainto_tsquery('simple', ?) "
+                   + "AND (user_low = ? OR user_high = ?) "
+                   + "AND (? = 0 OR first_message_id < ?) "
+                   + "AND (? = 0 OR last_message_id < ?) "
+                   + "AND last_message_id > ? "
+                   + "ORDER BY last_message_id DESC LIMIT ?";
+        
+        List<String> terms = searchTerms(query);
+        if (terms.isEmpty()) return new ArrayList<>();
+        
+        // Newest first, never more than 'limit'
+        List<MessageArchiver.ArchivedMessage> matches = new ArrayList<>();
+        int afterSegment = 0; // last_message_id of the last segment read; 0 before the first batch
+        boolean done = false;
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            while (!done) {
+                pstmt.setString(1, query);
+                pstmt.setInt(2, userId);
+                pstmt.setInt(3, userId);
+                pstmt.setInt(4, beforeMessageId);
+                pstmt.setInt(5, beforeMessageId);
+                pstmt.setInt(6, afterSegment);
+                pstmt.setInt(7, afterSegment);
+                pstmt.setInt(8, floorMessageId);
+                pstmt.setInt(9, ARCHIVE_SEARCH_BATCH);
+                
+                int segments = 0;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        segments++;
+                        afterSegment = rs.getInt("last_message_id");
+                        // Every message in this segment and the ones after it is older than our last hit
+                        if (matches.size() == limit && afterSegment < matches.get(limit - 1).messageId) {
+                            done = true;
+                            break;
+                        }
+                        for (MessageArchiver.ArchivedMessage msg : MessageArchiver.decode(rs.getBytes("payload"))) {
+                            if (beforeMessageId != 0 && msg.messageId >= beforeMessageId) continue;
+                            if (msg.messageId <= floorMessageId) continue;
+                            if (searchTerms(msg.text).containsAll(terms)) {
+                                matches.add(msg);
+                            }
+                        }
+                        matches.sort((a, b) -> Integer.compare(b.messageId, a.messageId));
+                        if (matches.size() > limit) matches.subList(limit, matches.size()).clear();
+                    }
+                }
+                if (segments < ARCHIVE_SEARCH_BATCH) done = true; // No segments left
+            }
+        }
+        List<Message> results = new ArrayList<>();
+        if (matches.isEmpty()) return results;
+        
+        Set<Integer> userIds = new HashSet<>();
+        for (MessageArchiver.ArchivedMessage msg : matches) {
+            userIds.add(msg.senderId);
+            userIds.add(msg.receiverId);
+        }
+        Map<Integer, String> names = getUsernames(conn, userIds);
+        for (MessageArchiver.ArchivedMessage msg : matches) {
+            results.add(new Message(msg.messageId, names.get(msg.senderId), names.get(msg.receiverId),
+                    msg.text, new Timestamp(msg.sentAtMillis)));
+        }
+        return results;
+    }
+    
+    /**
+     * Lower-cased words, split roughly the way Postgres' 'simple' text search config does.
+     */
+    private static List<String> searchTerms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) terms.add(word);
+        }
+        return terms;
+    }
+    
+    
+    // --- ARCHIVE METHODS (used by MessageArchiver) ---
+    
+    /**
+     * Finds conversations that have messages older than the cutoff.
+     * @return {user_low, user_high} pairs.
+     */
+    public List<int[]> findConversationsToArchive(Timestamp cutoff, int maxConversations) {
+        List<int[]> conversations = new ArrayList<>();
+        String sql = "SELECT DISTINCT LEAST(sender_id, receiver_id) AS user_low, GREATEST(sender_id, receiver_id) AS user_high "
+                   + "FROM private_messages WHERE sent_at < ? LIMIT ?";
+        
+        try (Connection conn = connect("findConversationsToArchive");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setTimestamp(1, cutoff);
+            pstmt.setInt(2, maxConversations);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    conversations.add(new int[] { rs.getInt("user_low"), rs.getInt("user_high") });
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error finding conversations to archive: {}", e.getMessage());
+        }
+        return conversations;
+    }
+    
+    /**
+     * Moves the oldest messages (up to 'maxMessages') of one conversation from
+     * the hot table into a new compressed segment, in a single transaction.
+     * @return How many messages were archived.
+     */
+    public int archiveSegment(int userLow, int userHigh, Timestamp cutoff, int maxMessages) {
+        String selectSql = "SELECT message_id, sender_id, receiver_id, sent_at, message_text FROM private_messages "
+                         + "WHERE LEAST(sender_id, receiver_id) = ? AND GREATEST(sender_id, receiver_id) = ? "
+                         + "AND sent_at < ? ORDER BY message_id ASC LIMIT ? FOR UPDATE";
+        String insertSql = "INSERT INTO private_message_archive (user_low, user_high, first_message_id, last_message_id, "
+                         + "first_sent_at, last_sent_at, message_count, payload, search_tsv) "
+                         + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, to_tsvector('simple', ?))";
+        String deleteSql = "DELETE FROM private_messages WHERE message_id = ANY(?)";
+        
+        try (Connection conn = connect("archiveSegment")) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement selectStmt = conn.prepareStatement(selectSql);
+                 PreparedStatement insertStmt = conn.prepareStatement(insertSql);
+                 PreparedStatement deleteStmt = conn.prepareStatement(deleteSql)) {
+                
+                List<MessageArchiver.ArchivedMessage> messages = new ArrayList<>();
+                selectStmt.setInt(1, userLow);
+                selectStmt.setInt(2, userHigh);
+                selectStmt.setTimestamp(3, cutoff);
+                selectStmt.setInt(4, maxMessages);
+                try (ResultSet rs = selectStmt.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(new MessageArchiver.ArchivedMessage(rs.getInt("message_id"), rs.getInt("sender_id"),
+                                rs.getInt("receiver_id"), rs.getTimestamp("sent_at").getTime(), rs.getString("message_text")));
+                    }
+                }
+                if (messages.isEmpty()) {
+                    conn.rollback();
+                    return 0;
+                }
+                
+                MessageArchiver.ArchivedMessage first = messages.get(0);
+                MessageArchiver.ArchivedMessage last = messages.get(messages.size() - 1);
+                StringBuilder allText = new StringBuilder();
+                Integer[] messageIds = new Integer[messages.size()];
+                for (int i = 0; i < messages.size(); i++) {
+                    allText.append(messages.get(i).text).append('\n');
+                    messageIds[i] = messages.get(i).messageId;
+                }
+                
+                insertStmt.setInt(1, userLow);
+                insertStmt.setInt(2, userHigh);
+                insertStmt.setInt(3, first.messageId);
+                insertStmt.setInt(4, last.messageId);
+                insertStmt.setTimestamp(5, new Timestamp(first.sentAtMillis));
+                insertStmt.setTimestamp(6, new Timestamp(last.sentAtMillis));
+                insertStmt.setInt(7, messages.size());
+                insertStmt.setBytes(8, MessageArchiver.encode(messages));
+                insertStmt.setString(9, allText.toString());
+                insertStmt.executeUpdate();
+                
+                deleteStmt.setArray(1, conn.createArrayOf("integer", messageIds));
+                deleteStmt.executeUpdate();
+                
+                conn.commit();
+                return messages.size();
+                
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            log.error("Error archiving messages: {}", e.getMessage());
+            return 0;
         }
-        return history;
     }
     
     
@@ -311,7 +1040,7 @@ public class DatabaseManager {
         String insertSql = "INSERT INTO friendships (user_one_id, user_two_id, status, action_user_id) "
                          + "VALUES (?, ?, 0, ?) ON CONFLICT (user_one_id, user_two_id) DO NOTHING"; 
 
-        try (Connection conn = connect()) {
+        try (Connection conn = connect("sendFriendRequest")) {
             // Check if a friendship (or request) already exists
             try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
                 checkStmt.setInt(1, userOneId);
@@ -334,6 +1063,7 @@ public class DatabaseManager {
                 int affectedRows = insertStmt.executeUpdate();
                 
                 if (affectedRows > 0) {
+                    router.recordWrite(senderId, receiverId);
                     return "Friend request sent.";
                 } else {
                     return "A friend request is already pending.";
@@ -341,7 +1071,7 @@ public class DatabaseManager {
             }
             
         } catch (SQLException e) {
-            System.err.println("Error sending friend request: " + e.getMessage());
+            log.error("Error sending friend request: {}", e.getMessage());
             return "An error occurred.";
         }
     }
@@ -356,7 +1086,7 @@ public class DatabaseManager {
         String sql = "UPDATE friendships SET status = ?, action_user_id = ? "
                    + "WHERE user_one_id = ? AND user_two_id = ? AND status = 0"; 
         
-        try (Connection conn = connect();
+        try (Connection conn = connect("actionFriendRequest");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setInt(1, status);
@@ -365,25 +1095,39 @@ public class DatabaseManager {
             pstmt.setInt(4, userTwoId);
             
             int affectedRows = pstmt.executeUpdate();
+            if (affectedRows > 0) {
+                router.recordWrite(currentUserId, senderId);
+            }
             return affectedRows > 0; 
             
         } catch (SQLException e) {
-            System.err.println("Error acting on friend request: " + e.getMessage());
+            log.error("Error acting on friend request: {}", e.getMessage());
             return false;
         }
     }
 
     /**
-     * Gets a list of a user's friends (status = 1).
+     * Gets a list of a user's friends (status = 1); empty on error.
      */
     public List<String> getFriendList(int userId) {
-        List<String> friends = new ArrayList<>();
-        String sql = "SELECT u.username FROM users u "
-                   + "JOIN friendships f ON (u.user_id = f.user_one_id OR u.user_id = f.user_two_id) "
+        Map<Integer, String> friends = getFriends(userId);
+        return friends != null ? new ArrayList<>(friends.values()) : new ArrayList<>();
+    }
+    
+    /**
+     * Gets a user's friends (status = 1) along with their IDs.
+     * @return user_id -> username, ordered by username, or null on error.
+     */
+    public Map<Integer, String> getFriends(int userId) {
+        Map<Integer, String> friends = new LinkedHashMap<>();
+        // Join on "the other side" of each friendship row, so each side of the OR
+        // can use its own per-user index instead of scanning the whole table
+        String sql = "SELECT u.user_id, u.username FROM friendships f "
+                   + "JOIN users u ON u.user_id = CASE WHEN f.user_one_id = ? THEN f.user_two_id ELSE f.user_one_id END "
                    + "WHERE (f.user_one_id = ? OR f.user_two_id = ?) "
-                   + "AND f.status = 1 AND u.user_id != ?"; 
+                   + "AND f.status = 1 ORDER BY u.username ASC"; 
         
-        try (Connection conn = connect();
+        try (Connection conn = connectForRead("getFriends", userId);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setInt(1, userId);
@@ -392,26 +1136,28 @@ public class DatabaseManager {
             
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    friends.add(rs.getString("username"));
+                    friends.put(rs.getInt("user_id"), rs.getString("username"));
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting friend list: " + e.getMessage());
+            log.error("Error getting friend list: {}", e.getMessage());
+            return null;
         }
         return friends;
     }
     
     /**
      * Gets a list of pending friend requests for a user (status = 0).
+     * @return The requesters' usernames, or null on error.
      */
     public List<String> getPendingRequests(int userId) {
         List<String> requests = new ArrayList<>();
         String sql = "SELECT u.username FROM users u "
                    + "JOIN friendships f ON u.user_id = f.action_user_id "
                    + "WHERE (f.user_one_id = ? OR f.user_two_id = ?) "
-                   + "AND f.status = 0 AND f.action_user_id != ?"; 
+                   + "AND f.status = 0 AND f.action_user_id != ? ORDER BY u.username ASC"; 
         
-        try (Connection conn = connect();
+        try (Connection conn = connectForRead("getPendingRequests", userId);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             pstmt.setInt(1, userId);
@@ -424,24 +1170,307 @@ public class DatabaseManager {
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting pending requests: " + e.getMessage());
+            log.error("Error getting pending requests: {}", e.getMessage());
+            return null;
         }
         return requests;
     }
 
+    /**
+     * Loads every accepted friendship and pending request in one pass, for
+     * warming the friend graph. Rejected requests are left out.
+     * @return Each entry is {userOneId, userTwoId, status, actionUserId}.
+     */
+    public List<int[]> getAllFriendships() {
+        List<int[]> friendships = new ArrayList<>();
+        String sql = "SELECT user_one_id, user_two_id, status, action_user_id FROM friendships WHERE status IN (0, 1)";
+
+        try (Connection conn = connectForRead("getAllFriendships", -1)) {
+            conn.setAutoCommit(false); // Lets the driver stream rows instead of buffering them all
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setFetchSize(BULK_FETCH_SIZE);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        friendships.add(new int[] { rs.getInt("user_one_id"), rs.getInt("user_two_id"),
+                                rs.getInt("status"), rs.getInt("action_user_id") });
+                    }
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            log.error("Error loading friendships: {}", e.getMessage());
+            return null;
+        }
+        return friendships;
+    }
+
+    
+    // --- ROOM METHODS (PostgreSQL) ---
+    
+    // createRoom's answer when the name belongs to another room
+    public static final int ROOM_NAME_TAKEN = -2;
+    
+    /**
+     * Creates a room and makes its creator the first member.
+     * @return The new room_id, ROOM_NAME_TAKEN if the name is in use, or -1 on error.
+     */
+    public int createRoom(int creatorId, String roomName) {
+        String insertRoomSql = "INSERT INTO rooms (name, created_by) VALUES (?, ?) "
+                             + "ON CONFLICT (name) DO NOTHING RETURNING room_id";
+        String insertMemberSql = "INSERT INTO room_members (room_id, user_id) VALUES (?, ?)";
+        
+        try (Connection conn = connect("createRoom")) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement roomStmt = conn.prepareStatement(insertRoomSql);
+                 PreparedStatement memberStmt = conn.prepareStatement(insertMemberSql)) {
+                
+                roomStmt.setString(1, roomName);
+                roomStmt.setInt(2, creatorId);
+                int roomId;
+                try (ResultSet rs = roomStmt.executeQuery()) {
+                    if (!rs.next()) {
+                        conn.rollback();
+                        return ROOM_NAME_TAKEN; // ON CONFLICT (name) skipped the insert
+                    }
+                    roomId = rs.getInt("room_id");
+                }
+                
+                memberStmt.setInt(1, roomId);
+                memberStmt.setInt(2, creatorId);
+                memberStmt.executeUpdate();
+                
+                conn.commit();
+                router.recordWrite(-1, creatorId); // Anyone can look the room up by name now
+                return roomId;
+                
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            log.error("Error creating room: {}", e.getMessage());
+            return -1;
+        }
+    }
+    
+    /**
+     * Finds a room's ID from its name.
+     */
+    public int getRoomId(String roomName) {
+        String sql = "SELECT room_id FROM rooms WHERE name = ?";
+        
+        try (Connection conn = connectForRead("getRoomId", -1);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setString(1, roomName);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt("room_id");
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error getting room ID: {}", e.getMessage());
+        }
+        return -1; // Room not found
+    }
+    
+    /**
+     * Adds a user to a room. Joining a room you're already in is not an error.
+     */
+    public boolean joinRoom(int roomId, int userId) {
+        String sql = "INSERT INTO room_members (room_id, user_id) VALUES (?, ?) "
+                   + "ON CONFLICT (room_id, user_id) DO NOTHING";
+        
+        try (Connection conn = connect("joinRoom");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, roomId);
+            pstmt.setInt(2, userId);
+            pstmt.executeUpdate();
+            router.recordWrite(userId);
+            return true;
+            
+        } catch (SQLException e) {
+            log.error("Error joining room: {}", e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Removes a user from a room.
+     * @return true if they were a member.
+     */
+    public boolean leaveRoom(int roomId, int userId) {
+        String sql = "DELETE FROM room_members WHERE room_id = ? AND user_id = ?";
+        
+        try (Connection conn = connect("leaveRoom");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, roomId);
+            pstmt.setInt(2, userId);
+            int affectedRows = pstmt.executeUpdate();
+            router.recordWrite(userId);
+            return affectedRows > 0;
+            
+        } catch (SQLException e) {
+            log.error("Error leaving room: {}", e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Gets every room a user belongs to.
+     * @return room_id -> room name, ordered by name.
+     */
+    public Map<Integer, String> getRoomsForUser(int userId) {
+        Map<Integer, String> rooms = new LinkedHashMap<>();
+        String sql = "SELECT r.room_id, r.name FROM room_members rm "
+                   + "JOIN rooms r ON r.room_id = rm.room_id "
+                   + "WHERE rm.user_id = ? ORDER BY r.name ASC";
+        
+        try (Connection conn = connectForRead("getRoomsForUser", userId);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, userId);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    rooms.put(rs.getInt("room_id"), rs.getString("name"));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error getting rooms for user: {}", e.getMessage());
+        }
+        return rooms;
+    }
+    
+    /**
+     * Saves a message sent to a room.
+     * @return The saved Message, or null if failed.
+     */
+    public Message saveRoomMessage(int roomId, int senderId, String message) {
+        // Insert and read back the sender's name in one round trip
+        String sql = "WITH m AS ("
+                   + "INSERT INTO room_messages (room_id, sender_id, message_text) VALUES (?, ?, ?) "
+                   + "RETURNING message_id, sender_id, message_text, sent_at) "
+                   + "SELECT m.message_id, m.message_text, u.username AS sender_username, m.sent_at "
+                   + "FROM m JOIN users u ON m.sender_id = u.user_id";
+        
+        try (Connection conn = connect("saveRoomMessage");
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            
+            pstmt.setInt(1, roomId);
+            pstmt.setInt(2, senderId);
+            pstmt.setString(3, message);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    router.recordWrite(senderId);
+                    return new Message(rs.getInt("message_id"), rs.getString("sender_username"), rs.getString("message_text"), rs.getTimestamp("sent_at"));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("Error saving room message: {}", e.getMessage());
+        }
+        return null;
+    }
     
     /**
      * A simple helper class to store a message.
      */
     public static class Message {
+        public final int messageId;
         public final String sender;
+        public final String receiver; // Only filled in where the caller needs it (e.g. search)
         public final String text;
         public final Timestamp timestamp; 
+        public final String clientMessageId; // The sender's own id for it, if they gave one
+        public final boolean duplicate;      // True if this came back for a retried send
+        
+        public Message(int messageId, String sender, String text, Timestamp timestamp) {
+            this(messageId, sender, null, text, timestamp);
+        }
+        
+        public Message(int messageId, String sender, String receiver, String text, Timestamp timestamp) {
+            this(messageId, sender, receiver, text, timestamp, null, false);
+        }
         
-        public Message(String sender, String text, Timestamp timestamp) {
+        public Message(int messageId, String sender, String receiver, String text, Timestamp timestamp,
+                       String clientMessageId, boolean duplicate) {
+            this.messageId = messageId;
             this.sender = sender;
+            this.receiver = receiver;
             this.text = text;
             this.timestamp = timestamp;
+            this.clientMessageId = clientMessageId;
+            this.duplicate = duplicate;
+        }
+    }
+    
+    /**
+     * How far 'userId' has received and read the messages 'peerId' sent them.
+     */
+    public static class Receipt {
+        public final int userId;
+        public final String username;
+        public final int peerId;
+        public final int deliveredUpTo;
+        public final int readUpTo;
+        public final int unreadCount; // What is left unread for 'userId', or -1 if there's no conversation summary
+        
+        public Receipt(int userId, String username, int peerId, int deliveredUpTo, int readUpTo, int unreadCount) {
+            this.userId = userId;
+            this.username = username;
+            this.peerId = peerId;
+            this.deliveredUpTo = deliveredUpTo;
+            this.readUpTo = readUpTo;
+            this.unreadCount = unreadCount;
+        }
+    }
+    
+    /**
+     * Metadata of a stored attachment.
+     */
+    public static class Attachment {
+        public final int attachmentId;
+        public final int uploaderId;
+        public final int receiverId;
+        public final String fileName;
+        public final long size;
+        public final String sha256; // Lowercase hex
+        
+        public Attachment(int attachmentId, int uploaderId, int receiverId, String fileName, long size, String sha256) {
+            this.attachmentId = attachmentId;
+            this.uploaderId = uploaderId;
+            this.receiverId = receiverId;
+            this.fileName = fileName;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+    
+    /**
+     * One row of a user's inbox: the last message with one peer and how many are unread.
+     */
+    public static class ConversationSummary {
+        public final int peerId;
+        public final String peerUsername;
+        public final int lastMessageId;
+        public final String lastSender;
+        public final String lastMessageText; // First 200 characters
+        public final Timestamp lastSentAt;
+        public final int unreadCount;
+        
+        public ConversationSummary(int peerId, String peerUsername, int lastMessageId, String lastSender,
+                                   String lastMessageText, Timestamp lastSentAt, int unreadCount) {
+            this.peerId = peerId;
+            this.peerUsername = peerUsername;
+            this.lastMessageId = lastMessageId;
+            this.lastSender = lastSender;
+            this.lastMessageText = lastMessageText;
+            this.lastSentAt = lastSentAt;
+            this.unreadCount = unreadCount;
         }
     }
     
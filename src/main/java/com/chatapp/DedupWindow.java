@@ -0,0 +1,80 @@
+package com.chatapp;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.chatapp.DatabaseManager.Message;
+
+/**
+ * Recently saved sends, by (sender, client message id), so a retry is
+ * answered from memory without touching the database.
+ *
+ * Bounded both in time and in size; anything older or evicted early falls
+ * through to the unique index on private_messages, which still catches it.
+ *
+ * Configuration (environment variables):
+ *   CHAT_DEDUP_WINDOW_SECONDS   how long a send is remembered (default 300)
+ */
+public class DedupWindow {
+
+    private static final int MAX_ENTRIES = 100_000;
+
+    private final long windowNanos;
+
+    // "senderId:clientMessageId" -> the saved message
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Keys in the order they were added, so the oldest can be dropped first
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+
+    private static final class Entry {
+        final String key;
+        final Message message;
+        final long savedAt;
+
+        Entry(String key, Message message, long savedAt) {
+            this.key = key;
+            this.message = message;
+            this.savedAt = savedAt;
+        }
+    }
+
+    public DedupWindow() {
+        this.windowNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(DataSourceRouter.env("CHAT_DEDUP_WINDOW_SECONDS", "300")));
+    }
+
+    /**
+     * @return The message saved earlier for this send, or null if we don't remember one.
+     */
+    public Message get(int senderId, String clientMessageId) {
+        Entry entry = entries.get(key(senderId, clientMessageId));
+        if (entry == null || System.nanoTime() - entry.savedAt > windowNanos) return null;
+        return entry.message;
+    }
+
+    /**
+     * Remembers a saved send, dropping whatever has fallen out of the window.
+     */
+    public void put(int senderId, String clientMessageId, Message message) {
+        long now = System.nanoTime();
+        Entry entry = new Entry(key(senderId, clientMessageId), message, now);
+        if (entries.putIfAbsent(entry.key, entry) != null) return;
+        order.add(entry);
+
+        Entry oldest;
+        while ((oldest = order.peek()) != null
+                && (now - oldest.savedAt > windowNanos || entries.size() > MAX_ENTRIES)) {
+            Entry removed = order.poll(); // Usually 'oldest'; another thread may have beaten us to it
+            if (removed != null) {
+                entries.remove(removed.key, removed);
+            }
+        }
+    }
+
+    private static String key(int senderId, String clientMessageId) {
+        return senderId + ":" + clientMessageId;
+    }
+}
@@ -0,0 +1,261 @@
+package com.chatapp;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.java_websocket.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Online users' sessions, split into shards by a hash of the user id, each
+ * shard with its own session table and its own delivery thread.
+ *
+ * Sending to a user hands the frame to that user's shard, which writes it
+ * to their connections on its own thread. Every sending thread has one
+ * single-producer/single-consumer ring into each shard, so a handoff takes
+ * no lock and no compare-and-set, and shards never share a structure. A
+ * broadcast is split N ways and goes out on N cores at once.
+ *
+ * Frames sent by one thread to one user arrive in the order they were sent
+ * (a client's requests are all handled on the same Java-WebSocket worker,
+ * so that covers one sender's messages). Frames written straight to a
+ * connection with conn.send() are not ordered with respect to these; a
+ * reply that has to stay in order with them goes through sendTo().
+ *
+ * Logins and logouts still update the owning shard's table directly (under
+ * that shard's lock only), since the caller needs the answer right away.
+ * Rings are kept per thread for good, so send from long-lived threads.
+ *
+ * Configuration (environment variables):
+ *   CHAT_SHARDS   how many shards (default: one per core)
+ */
+public class DeliveryShards {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryShards.class);
+
+    // Frames waiting per sending thread per shard before the sender has to wait
+    private static final int RING_CAPACITY = 4096;
+
+    // Tasks taken from one ring before moving on to the next, so no sender starves the others
+    private static final int BATCH = 256;
+
+    // Empty polls before a shard thread parks
+    private static final int SPINS_BEFORE_PARK = 100;
+
+    private final Shard[] shards;
+
+    // This thread's ring into each shard; created on first use
+    private final ThreadLocal<SpscRing<Runnable>[]> rings;
+
+    public DeliveryShards() {
+        this(Integer.parseInt(DataSourceRouter.env("CHAT_SHARDS", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    }
+
+    public DeliveryShards(int count) {
+        shards = new Shard[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(i);
+        }
+        rings = ThreadLocal.withInitial(() -> newRings(shards.length));
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        log.info("Delivering through {} shard(s)", shards.length);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <E> SpscRing<E>[] newRings(int count) {
+        return new SpscRing[count];
+    }
+
+    /**
+     * @return Which shard a user belongs to.
+     */
+    int shardOf(int userId) {
+        // Fibonacci hashing spreads runs of consecutive ids evenly
+        return (int) (((userId * 0x9E3779B9L) & 0xFFFFFFFFL) * shards.length >>> 32);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Adds a session for a user.
+     * @return How many sessions the user has now (1 means they just came online),
+     *         or -1 if they already have the maximum.
+     */
+    public int add(int userId, WebSocket conn) {
+        return shards[shardOf(userId)].sessions.add(userId, conn);
+    }
+
+    /**
+     * Removes one of a user's sessions.
+     * @return True if that was their last one (they are now offline).
+     */
+    public boolean remove(int userId, WebSocket conn) {
+        return shards[shardOf(userId)].sessions.remove(userId, conn);
+    }
+
+    /**
+     * @return The user's open connections; empty (never null) if they are offline.
+     *         The array must not be modified.
+     */
+    public WebSocket[] get(int userId) {
+        return shards[shardOf(userId)].sessions.get(userId);
+    }
+
+    public boolean isOnline(int userId) {
+        return shards[shardOf(userId)].sessions.isOnline(userId);
+    }
+
+    /**
+     * Queues one frame for every session of a user.
+     * @return How many sessions the user has right now (what it will most likely go to).
+     */
+    public int send(int userId, String frame) {
+        Shard shard = shards[shardOf(userId)];
+        int sessionCount = shard.sessions.get(userId).length;
+        if (sessionCount == 0) return 0;
+
+        if (Thread.currentThread() == shard.thread) {
+            shard.sessions.send(userId, frame);
+        } else {
+            handOff(shard, () -> shard.sessions.send(userId, frame));
+        }
+        return sessionCount;
+    }
+
+    /**
+     * Queues one frame for just one of a user's connections, in order with
+     * what this thread has already queued for that user.
+     */
+    public void sendTo(int userId, WebSocket conn, String frame) {
+        Shard shard = shards[shardOf(userId)];
+        if (Thread.currentThread() == shard.thread) {
+            SessionRegistry.sendQuietly(conn, frame);
+        } else {
+            handOff(shard, () -> SessionRegistry.sendQuietly(conn, frame));
+        }
+    }
+
+    /**
+     * Queues one frame for every open session of every online user; each
+     * shard sends to its own users.
+     * @return How many sessions are open right now.
+     */
+    public int sendToAll(String frame) {
+        int sessionCount = 0;
+        for (Shard shard : shards) {
+            int count = shard.sessions.sessionCount();
+            if (count == 0) continue;
+            sessionCount += count;
+            handOff(shard, () -> shard.sessions.sendToAll(frame));
+        }
+        return sessionCount;
+    }
+
+    private void handOff(Shard shard, Runnable task) {
+        SpscRing<Runnable>[] mine = rings.get();
+        int index = shard.index;
+        SpscRing<Runnable> ring = mine[index];
+        if (ring == null) {
+            ring = mine[index] = shard.register();
+        }
+
+        while (!ring.offer(task)) {
+            // The shard is behind; make sure it's awake and give it a moment
+            shard.wake();
+            Thread.yield();
+        }
+        // Pairs with the fence in Shard.run(): either it sees our task or we see it parked
+        VarHandle.fullFence();
+        shard.wake();
+    }
+
+    private final class Shard implements Runnable {
+        final SessionRegistry sessions = new SessionRegistry();
+        final Thread thread;
+        final int index;
+
+        // One ring per thread that has sent here; copied on write, since new senders are rare
+        private volatile SpscRing<Runnable>[] inbound;
+
+        private final AtomicBoolean parked = new AtomicBoolean();
+
+        Shard(int index) {
+            this.index = index;
+            this.inbound = newRings(0);
+            this.thread = new Thread(this, "delivery-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        synchronized SpscRing<Runnable> register() {
+            SpscRing<Runnable> ring = new SpscRing<>(RING_CAPACITY);
+            SpscRing<Runnable>[] next = Arrays.copyOf(inbound, inbound.length + 1);
+            next[inbound.length] = ring;
+            inbound = next;
+            return ring;
+        }
+
+        void wake() {
+            if (parked.get() && parked.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                if (drain()) {
+                    idle = 0;
+                    continue;
+                }
+                if (++idle < SPINS_BEFORE_PARK) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                parked.set(true);
+                VarHandle.fullFence();
+                if (hasWork()) {
+                    parked.set(false);
+                } else {
+                    LockSupport.park(this);
+                    parked.set(false);
+                }
+                idle = 0;
+            }
+        }
+
+        /**
+         * @return True if anything was run.
+         */
+        private boolean drain() {
+            boolean ran = false;
+            for (SpscRing<Runnable> ring : inbound) {
+                Runnable task;
+                for (int i = 0; i < BATCH && (task = ring.poll()) != null; i++) {
+                    ran = true;
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Delivery failed on {}: {}", thread.getName(), e.toString());
+                    }
+                }
+            }
+            return ran;
+        }
+
+        private boolean hasWork() {
+            for (SpscRing<Runnable> ring : inbound) {
+                if (!ring.isEmpty()) return true;
+            }
+            return false;
+        }
+    }
+}
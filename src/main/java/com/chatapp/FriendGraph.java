@@ -0,0 +1,107 @@
+package com.chatapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everyone's friends and incoming friend requests as they were at startup,
+ * so a reconnecting user's contact list can be built without a query.
+ *
+ * Not kept up to date: once a user's friendships change, they are marked
+ * stale and their lists come from the database again until the next
+ * restart. That also makes a load that finishes late harmless, since
+ * whatever changed in the meantime is already marked.
+ */
+public class FriendGraph {
+
+    private static final int[] NONE = new int[0];
+
+    /** One user's side of the graph. */
+    public static final class Links {
+        public final int[] friendIds;
+        public final int[] pendingFromIds; // Users whose requests are waiting on this one
+
+        Links(int[] friendIds, int[] pendingFromIds) {
+            this.friendIds = friendIds;
+            this.pendingFromIds = pendingFromIds;
+        }
+    }
+
+    private static final Links EMPTY = new Links(NONE, NONE);
+
+    private final DatabaseManager dbManager;
+
+    // user_id -> links; null until loaded. Users without any friendships aren't stored.
+    private volatile Map<Integer, Links> links;
+
+    // Users whose friendships changed since the load
+    private final Set<Integer> stale = ConcurrentHashMap.newKeySet();
+
+    public FriendGraph(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * Loads every friendship and pending request from the database.
+     * @return How many were loaded, or -1 if the load failed.
+     */
+    public int load() {
+        List<int[]> friendships = dbManager.getAllFriendships();
+        if (friendships == null) return -1;
+
+        Map<Integer, List<Integer>> friends = new HashMap<>();
+        Map<Integer, List<Integer>> pendingFrom = new HashMap<>();
+        for (int[] row : friendships) {
+            int userOne = row[0], userTwo = row[1], status = row[2], actionUser = row[3];
+            if (status == 1) {
+                friends.computeIfAbsent(userOne, id -> new ArrayList<>()).add(userTwo);
+                friends.computeIfAbsent(userTwo, id -> new ArrayList<>()).add(userOne);
+            } else {
+                // While pending, the action user is the one who sent the request
+                int receiver = actionUser == userOne ? userTwo : userOne;
+                pendingFrom.computeIfAbsent(receiver, id -> new ArrayList<>()).add(actionUser);
+            }
+        }
+
+        Map<Integer, Links> loaded = new HashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : friends.entrySet()) {
+            loaded.put(entry.getKey(), new Links(toArray(entry.getValue()), NONE));
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : pendingFrom.entrySet()) {
+            Links current = loaded.get(entry.getKey());
+            loaded.put(entry.getKey(), new Links(current != null ? current.friendIds : NONE, toArray(entry.getValue())));
+        }
+        links = loaded;
+        return friendships.size();
+    }
+
+    /**
+     * @return The user's links, or null if they have to come from the
+     *         database (not loaded yet, or changed since).
+     */
+    public Links get(int userId) {
+        Map<Integer, Links> current = links;
+        if (current == null || stale.contains(userId)) return null;
+        Links userLinks = current.get(userId);
+        return userLinks != null ? userLinks : EMPTY;
+    }
+
+    /**
+     * Stops answering for a user whose friendships just changed.
+     */
+    public void invalidate(int userId) {
+        stale.add(userId);
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ids.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,83 @@
+package com.chatapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP endpoint on localhost for load balancers and deploy scripts.
+ *
+ *   GET /health   always 200; says which phase we're in, how the warm-up is going
+ *                 and whether the database is reachable
+ *   GET /ready    200 once warm and accepting WebSocket connections, 503 until then
+ *
+ * A rolling restart should wait for /ready before moving on to the next
+ * instance, so clients are only ever sent to a warm one.
+ *
+ * Configuration (environment variables):
+ *   CHAT_HEALTH_PORT   port on 127.0.0.1 (default 8081)
+ */
+public class HealthServer {
+
+    private static final Logger log = LoggerFactory.getLogger(HealthServer.class);
+
+    private final WarmUp warmUp;
+    private final BooleanSupplier degraded;
+    private volatile boolean accepting;
+    private HttpServer server;
+
+    /**
+     * @param degraded True while the server is running without its database.
+     *                 Still "ready": live delivery and presence keep working.
+     */
+    public HealthServer(WarmUp warmUp, BooleanSupplier degraded) {
+        this.warmUp = warmUp;
+        this.degraded = degraded;
+    }
+
+    public void start() throws IOException {
+        int port = Integer.parseInt(DataSourceRouter.env("CHAT_HEALTH_PORT", "8081"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/health", exchange -> respond(exchange, 200));
+        server.createContext("/ready", exchange -> respond(exchange, accepting ? 200 : 503));
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "health-endpoint");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        log.info("Health endpoint listening on 127.0.0.1:{}", port);
+    }
+
+    /**
+     * Called once the WebSocket server is bound and taking connections.
+     */
+    public void markAccepting() {
+        accepting = true;
+    }
+
+    private void respond(HttpExchange exchange, int status) throws IOException {
+        JSONObject body = new JSONObject();
+        body.put("status", accepting ? "ready" : warmUp.isFinished() ? "starting" : "warming");
+        body.put("database", degraded.getAsBoolean() ? "unavailable" : "ok");
+        body.put("warmUp", warmUp.toJson());
+
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.chatapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves old private messages out of the hot 'private_messages' table into
+ * compressed per-conversation segments in 'private_message_archive'.
+ *
+ * Configuration (environment variables):
+ *   CHAT_ARCHIVE_AFTER_DAYS         archive messages older than this (default 180, 0 = never)
+ *   CHAT_ARCHIVE_INTERVAL_MINUTES   how often the job runs (default 60)
+ *   CHAT_ARCHIVE_RUN_MINUTES        how long one run may keep going (default 20)
+ *
+ * DatabaseManager reads through to the archive, so history and search don't
+ * change for clients; only the hot table (and its indexes) stays small.
+ */
+public class MessageArchiver {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageArchiver.class);
+
+    // Messages per segment (and per transaction)
+    static final int SEGMENT_SIZE = 500;
+
+    // Conversations looked up at a time; a run keeps fetching more until it runs out or out of time
+    private static final int CONVERSATIONS_PER_BATCH = 200;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final DatabaseManager dbManager;
+    private final long archiveAfterMillis;
+    private final long intervalMinutes;
+    private final long runBudgetNanos;
+    private ScheduledExecutorService scheduler;
+
+    public MessageArchiver(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+        this.archiveAfterMillis = TimeUnit.DAYS.toMillis(Long.parseLong(DataSourceRouter.env("CHAT_ARCHIVE_AFTER_DAYS", "180")));
+        this.intervalMinutes = Long.parseLong(DataSourceRouter.env("CHAT_ARCHIVE_INTERVAL_MINUTES", "60"));
+        this.runBudgetNanos = TimeUnit.MINUTES.toNanos(Long.parseLong(DataSourceRouter.env("CHAT_ARCHIVE_RUN_MINUTES", "20")));
+    }
+
+    public void start() {
+        if (archiveAfterMillis <= 0) {
+            log.info("Message archiving is disabled.");
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runOnce, 1, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Archives everything older than the cutoff, one segment at a time,
+     * until nothing is left or the run's time budget is used up.
+     */
+    void runOnce() {
+        try {
+            Timestamp cutoff = new Timestamp(System.currentTimeMillis() - archiveAfterMillis);
+            long deadline = System.nanoTime() + runBudgetNanos;
+            long archived = 0;
+            boolean outOfTime = false;
+            while (!outOfTime) {
+                List<int[]> conversations = dbManager.findConversationsToArchive(cutoff, CONVERSATIONS_PER_BATCH);
+                if (conversations.isEmpty()) break; // Caught up
+                
+                long archivedBefore = archived;
+                for (int[] conversation : conversations) {
+                    int moved;
+                    do {
+                        moved = dbManager.archiveSegment(conversation[0], conversation[1], cutoff, SEGMENT_SIZE);
+                        archived += moved;
+                        outOfTime = System.nanoTime() - deadline > 0;
+                    } while (moved == SEGMENT_SIZE && !outOfTime);
+                    if (outOfTime) break;
+                }
+                if (archived == archivedBefore) break; // No progress (e.g. database errors); try again next run
+            }
+            if (archived > 0) {
+                log.info("Archived {} old messages{}.", archived, outOfTime ? " (out of time, the next run continues)" : "");
+            }
+        } catch (RuntimeException e) {
+            // Never let one bad run kill the schedule
+            log.error("Error archiving messages: {}", e.getMessage(), e);
+        }
+    }
+
+    // --- Segment format ---
+
+    /**
+     * One message as stored inside a segment.
+     */
+    static class ArchivedMessage {
+        final int messageId;
+        final int senderId;
+        final int receiverId;
+        final long sentAtMillis;
+        final String text;
+
+        ArchivedMessage(int messageId, int senderId, int receiverId, long sentAtMillis, String text) {
+            this.messageId = messageId;
+            this.senderId = senderId;
+            this.receiverId = receiverId;
+            this.sentAtMillis = sentAtMillis;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Packs messages (oldest first) into a gzip-compressed segment.
+     */
+    static byte[] encode(List<ArchivedMessage> messages) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(messages.size());
+            for (ArchivedMessage msg : messages) {
+                out.writeInt(msg.messageId);
+                out.writeInt(msg.senderId);
+                out.writeInt(msg.receiverId);
+                out.writeLong(msg.sentAtMillis);
+                byte[] text = msg.text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode archive segment", e); // In-memory, can't happen
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Unpacks a segment, oldest message first.
+     */
+    static List<ArchivedMessage> decode(byte[] payload) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(payload)))) {
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalStateException("Unknown archive segment format: " + version);
+            }
+            int count = in.readInt();
+            List<ArchivedMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int messageId = in.readInt();
+                int senderId = in.readInt();
+                int receiverId = in.readInt();
+                long sentAt = in.readLong();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                messages.add(new ArchivedMessage(messageId, senderId, receiverId, sentAt, new String(text, StandardCharsets.UTF_8)));
+            }
+            return messages;
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt archive segment", e);
+        }
+    }
+}
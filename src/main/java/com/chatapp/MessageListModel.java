@@ -0,0 +1,98 @@
+package com.chatapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+
+/**
+ * The open conversation in ChatClientGUI's WebSocket mode, as rows for a
+ * JList. The list only renders the rows in view, so a long conversation
+ * costs one small object per loaded message and nothing more.
+ *
+ * Older pages are put in front as the user scrolls up. New messages go at
+ * the end, and once there are more than 'maxLines' the oldest are dropped;
+ * scrolling back up loads them again.
+ *
+ * Swing model: only touch it on the EDT.
+ */
+@SuppressWarnings("serial")
+public class MessageListModel extends AbstractListModel<MessageListModel.Line> {
+
+    /** One message, already formatted for display. */
+    public static final class Line {
+        final int messageId; // 0 if the server didn't save it
+        final String text;
+
+        Line(int messageId, String text) {
+            this.messageId = messageId;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private final List<Line> lines = new ArrayList<>();
+    private final int maxLines;
+
+    public MessageListModel(int maxLines) {
+        this.maxLines = maxLines;
+    }
+
+    @Override
+    public int getSize() {
+        return lines.size();
+    }
+
+    @Override
+    public Line getElementAt(int index) {
+        return lines.get(index);
+    }
+
+    /**
+     * @return The id of the oldest saved message loaded, or 0 if there is none.
+     */
+    public int oldestMessageId() {
+        for (Line line : lines) {
+            if (line.messageId > 0) return line.messageId;
+        }
+        return 0;
+    }
+
+    public void clear() {
+        int size = lines.size();
+        if (size == 0) return;
+        lines.clear();
+        fireIntervalRemoved(this, 0, size - 1);
+    }
+
+    /**
+     * Puts an older page in front of what's loaded.
+     * @param page Oldest first.
+     */
+    public void prepend(List<Line> page) {
+        if (page.isEmpty()) return;
+        lines.addAll(0, page);
+        fireIntervalAdded(this, 0, page.size() - 1);
+    }
+
+    /**
+     * Adds newer lines at the end, then drops the oldest past 'maxLines'.
+     * @return How many were dropped.
+     */
+    public int append(List<Line> newer) {
+        if (newer.isEmpty()) return 0;
+        int start = lines.size();
+        lines.addAll(newer);
+        fireIntervalAdded(this, start, lines.size() - 1);
+
+        int excess = lines.size() - maxLines;
+        if (excess <= 0) return 0;
+        lines.subList(0, excess).clear();
+        fireIntervalRemoved(this, 0, excess - 1);
+        return excess;
+    }
+}
@@ -0,0 +1,238 @@
+package com.chatapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scalable version of ChatServer: same line protocol, but every client is
+ * served by a single selector thread instead of a thread per socket.
+ *
+ * Each client has its own write queue. A broadcast is encoded once and the
+ * same bytes are queued for every client, so a client that stops reading
+ * only fills up its own queue (and gets dropped when it's too far behind)
+ * instead of blocking everyone else.
+ */
+public class NioChatServer {
+
+    private static final Logger log = LoggerFactory.getLogger(NioChatServer.class);
+
+    // One read buffer shared by all clients, since only the selector thread reads
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Longest line we'll accept from a client
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+
+    // A client with more than this waiting to be written is too slow, and is disconnected
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;
+
+    private final int port;
+    private Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Copy-on-write, so a broadcast never sees the list change underneath it
+    private final List<NioClient> clients = new CopyOnWriteArrayList<>();
+    private int nextUserNumber = 0;
+
+    public NioChatServer(int port) {
+        this.port = port;
+    }
+
+    public void start() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = Selector.open();
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            log.info("✅ NIO server started. Listening on port {}", port);
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+
+                    NioClient client = (NioClient) key.attachment();
+                    if (key.isWritable()) {
+                        flush(client);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(client);
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            log.error("Server exception: {}", e.getMessage());
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            NioClient client = new NioClient(channel, "User" + nextUserNumber++);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+
+            broadcastMessage(client.username + " has joined the chat.");
+        }
+    }
+
+    /**
+     * Reads whatever is available and broadcasts every complete line.
+     */
+    private void read(NioClient client) {
+        int bytesRead;
+        try {
+            readBuffer.clear();
+            bytesRead = client.channel.read(readBuffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+
+        if (bytesRead == -1) {
+            removeClient(client);
+            return;
+        }
+
+        readBuffer.flip();
+        while (readBuffer.hasRemaining() && client.channel.isOpen()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                String line = client.takeLine();
+                broadcastMessage("[" + client.username + "]: " + line);
+            } else if (!client.appendToLine(b)) {
+                removeClient(client); // Line too long
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a message to all connected clients.
+     * The line is encoded once; each client gets its own view of the same bytes.
+     */
+    public void broadcastMessage(String message) {
+        ByteBuffer encoded = ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        for (NioClient client : clients) {
+            send(client, encoded.duplicate());
+        }
+    }
+
+    private void send(NioClient client, ByteBuffer data) {
+        if (client.queuedBytes + data.remaining() > MAX_QUEUED_BYTES) {
+            log.warn("{} is not reading, disconnecting.", client.username);
+            removeClient(client);
+            return;
+        }
+        client.pending.add(data);
+        client.queuedBytes += data.remaining();
+
+        // Nothing else was waiting, so try to write straight away
+        if (client.pending.size() == 1) {
+            flush(client);
+        }
+    }
+
+    /**
+     * Writes as much of the client's queue as the socket will take,
+     * and asks the selector to tell us when it can take more.
+     */
+    private void flush(NioClient client) {
+        try {
+            while (!client.pending.isEmpty()) {
+                ByteBuffer head = client.pending.peek();
+                int written = client.channel.write(head);
+                client.queuedBytes -= written;
+                if (head.hasRemaining()) {
+                    client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                client.pending.poll();
+            }
+            client.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException | CancelledKeyException e) {
+            removeClient(client);
+        }
+    }
+
+    /**
+     * Called when a client disconnects (or is dropped).
+     */
+    private void removeClient(NioClient client) {
+        if (!clients.remove(client)) return; // Already removed
+
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        broadcastMessage("A client has disconnected.");
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Per-client state. Kept small, since there may be tens of thousands of these.
+     * Only touched by the selector thread.
+     */
+    private static class NioClient {
+        final SocketChannel channel;
+        final String username;
+        SelectionKey key;
+
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>(2);
+        int queuedBytes;
+
+        // Bytes of a line that hasn't ended yet; only allocated when needed
+        private ByteArrayOutputStream partialLine;
+
+        NioClient(SocketChannel channel, String username) {
+            this.channel = channel;
+            this.username = username;
+        }
+
+        boolean appendToLine(byte b) {
+            if (partialLine == null) {
+                partialLine = new ByteArrayOutputStream(128);
+            }
+            if (partialLine.size() >= MAX_LINE_BYTES) return false;
+            partialLine.write(b);
+            return true;
+        }
+
+        String takeLine() {
+            if (partialLine == null) return "";
+            String line = partialLine.toString(StandardCharsets.UTF_8);
+            partialLine = null;
+            // Clients on Windows send "\r\n"
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.chatapp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One bit per user id: set while that user is online.
+ *
+ * Presence is checked per friend on every contact list build, and a bit test
+ * is cheaper than any map lookup. A million user ids fit in 125 KB.
+ *
+ * Like ConcurrentIntMap, writes must be serialized by the caller and reads
+ * are lock-free. The array grows as higher user ids come online.
+ */
+public class OnlineBitSet {
+
+    private volatile AtomicLongArray words = new AtomicLongArray(1024); // 65,536 ids to start with
+
+    public boolean get(int userId) {
+        if (userId < 0) return false;
+        AtomicLongArray w = words;
+        int index = userId >>> 6;
+        return index < w.length() && (w.get(index) & (1L << userId)) != 0;
+    }
+
+    /**
+     * Callers must not write concurrently.
+     */
+    public void set(int userId, boolean online) {
+        if (userId < 0) throw new IllegalArgumentException("Negative user id: " + userId);
+        int index = userId >>> 6;
+        AtomicLongArray w = words;
+        if (index >= w.length()) {
+            if (!online) return;
+            w = grow(w, index);
+        }
+        long word = w.get(index);
+        w.set(index, online ? word | (1L << userId) : word & ~(1L << userId));
+    }
+
+    private AtomicLongArray grow(AtomicLongArray old, int index) {
+        int length = old.length();
+        while (length <= index) length <<= 1;
+        AtomicLongArray next = new AtomicLongArray(length);
+        for (int i = 0; i < old.length(); i++) {
+            next.set(i, old.get(i));
+        }
+        words = next;
+        return next;
+    }
+}
@@ -0,0 +1,170 @@
+package com.chatapp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token buckets, checked before every message is dispatched.
+ *
+ * Each bucket is a single long (the GCRA "theoretical arrival time"), updated
+ * with one compare-and-set, so a check costs a clock read and a CAS per bucket.
+ * Every connection has its own set of buckets, and so does every logged-in
+ * user (shared by all of that user's connections). A user's buckets are
+ * kept while any of their connections holds them, so a new session always
+ * shares the budget of the ones already open.
+ */
+public class RateLimiter {
+
+    // --- Message categories, each with its own budget ---
+    static final int AUTH = 0;           // login, register (BCrypt is expensive)
+    static final int PRIVATE_MESSAGE = 1;
+    static final int TYPING = 2;
+    static final int HISTORY = 3;
+    static final int SEARCH = 4;
+    static final int CONTACTS = 5;
+    static final int ROOM_MESSAGE = 6;
+    static final int OTHER = 7;          // friend requests, room management, ...
+    private static final int CATEGORY_COUNT = 8;
+
+    // Sustained requests per second, per category
+    private static final double[] RATE_PER_SECOND = { 1, 10, 10, 5, 1, 2, 10, 5 };
+
+    // Requests allowed back-to-back before the rate kicks in, per category
+    private static final int[] BURST = { 5, 20, 20, 10, 5, 10, 20, 10 };
+
+    private static final long[] EMISSION_INTERVAL_NANOS = new long[CATEGORY_COUNT];
+    private static final long[] TOLERANCE_NANOS = new long[CATEGORY_COUNT];
+    static {
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            EMISSION_INTERVAL_NANOS[i] = (long) (TimeUnit.SECONDS.toNanos(1) / RATE_PER_SECOND[i]);
+            TOLERANCE_NANOS[i] = EMISSION_INTERVAL_NANOS[i] * (BURST[i] - 1);
+        }
+    }
+
+    // user_id -> buckets shared by all of that user's connections
+    private final Map<Integer, Buckets> userBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Maps a message "type" to the budget it is charged against.
+     */
+    static int categoryOf(String type) {
+        switch (type) {
+            case "login":
+            case "register":
+                return AUTH;
+            case "private_message":
+                return PRIVATE_MESSAGE;
+            case "start_typing":
+            case "stop_typing":
+                return TYPING;
+            case "get_message_history":
+                return HISTORY;
+            case "search_users":
+            case "search_messages":
+                return SEARCH;
+            case "get_contact_list":
+                return CONTACTS;
+            case "room_message":
+                return ROOM_MESSAGE;
+            default:
+                return OTHER;
+        }
+    }
+
+    public static Buckets newBuckets() {
+        return new Buckets();
+    }
+
+    /**
+     * Gets the buckets for a user, creating them on first login.
+     * Call once per login and keep the result, not once per message;
+     * each call must be matched by a releaseUserBuckets when the connection goes.
+     */
+    public Buckets acquireUserBuckets(int userId) {
+        return userBuckets.compute(userId, (id, buckets) -> {
+            if (buckets == null) buckets = new Buckets();
+            buckets.holders++;
+            return buckets;
+        });
+    }
+
+    /**
+     * A connection of this user no longer uses their buckets.
+     */
+    public void releaseUserBuckets(int userId) {
+        userBuckets.computeIfPresent(userId, (id, buckets) -> {
+            buckets.holders--;
+            return buckets;
+        });
+    }
+
+    /**
+     * Charges one request against the connection's buckets (and its user's, if logged in).
+     * @return 0 if the request may go ahead, otherwise how many nanoseconds until it would be allowed.
+     */
+    public long tryAcquire(Buckets connection, Buckets user, int category) {
+        long now = System.nanoTime();
+        long wait = connection.tryAcquire(category, now);
+        if (wait == 0 && user != null) {
+            wait = user.tryAcquire(category, now);
+        }
+        return wait;
+    }
+
+    /**
+     * Forgets users who have no connection left and whose buckets have
+     * completely refilled. A full bucket behaves exactly like a new one,
+     * so nothing is lost.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        for (Integer userId : userBuckets.keySet()) {
+            // Checked under the map's lock for this key, so a concurrent acquire can't slip in between
+            userBuckets.computeIfPresent(userId, (id, buckets) ->
+                    buckets.holders == 0 && buckets.isFull(now) ? null : buckets);
+        }
+    }
+
+    /**
+     * One bucket per category.
+     */
+    public static final class Buckets {
+        // Theoretical arrival time (System.nanoTime based) per category
+        private final AtomicLongArray tat = new AtomicLongArray(CATEGORY_COUNT);
+
+        // Connections holding these buckets; only changed inside the map's compute calls
+        private int holders;
+
+        private Buckets() {
+            long now = System.nanoTime();
+            for (int i = 0; i < CATEGORY_COUNT; i++) {
+                tat.set(i, now);
+            }
+        }
+
+        long tryAcquire(int category, long now) {
+            long interval = EMISSION_INTERVAL_NANOS[category];
+            long tolerance = TOLERANCE_NANOS[category];
+            while (true) {
+                long current = tat.get(category);
+                long base = Math.max(current, now);
+                long ahead = base - now;
+                if (ahead > tolerance) {
+                    return ahead - tolerance; // Over budget
+                }
+                if (tat.compareAndSet(category, current, base + interval)) {
+                    return 0;
+                }
+            }
+        }
+
+        boolean isFull(long now) {
+            for (int i = 0; i < CATEGORY_COUNT; i++) {
+                if (tat.get(i) > now) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.chatapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.chatapp.DatabaseManager.Receipt;
+
+/**
+ * Collects delivered/read acknowledgements and writes them out in batches.
+ *
+ * Marks are per-conversation high-water marks, so any number of acks for one
+ * conversation between two flushes collapse into one row update and one
+ * receipt for the sender. Receipt traffic grows with the number of active
+ * conversations, not the number of messages.
+ *
+ * Configuration (environment variables):
+ *   CHAT_RECEIPT_FLUSH_MS   how often pending marks are written and pushed (default 500)
+ */
+public class ReceiptCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(ReceiptCoalescer.class);
+
+    // Rows per statement
+    private static final int MAX_BATCH = 1000;
+
+    private final DatabaseManager dbManager;
+    private final Consumer<List<Receipt>> onFlushed;
+    private final long flushIntervalMs;
+
+    // (reader << 32 | peer) -> marks not yet written
+    private final Map<Long, Marks> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param onFlushed Gets the stored state of every conversation written in a flush.
+     */
+    public ReceiptCoalescer(DatabaseManager dbManager, Consumer<List<Receipt>> onFlushed) {
+        this.dbManager = dbManager;
+        this.onFlushed = onFlushed;
+        this.flushIntervalMs = Long.parseLong(DataSourceRouter.env("CHAT_RECEIPT_FLUSH_MS", "500"));
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "receipt-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 'userId' has been sent 'peerId''s messages up to and including 'messageId'.
+     * Notes to self have no one to send a receipt to, so they're ignored.
+     */
+    public void markDelivered(int userId, int peerId, int messageId) {
+        if (userId == peerId) return;
+        pending.merge(key(userId, peerId), new Marks(messageId, 0), Marks::max);
+    }
+
+    /**
+     * 'userId' has read 'peerId''s messages up to and including 'messageId'.
+     */
+    public void markRead(int userId, int peerId, int messageId) {
+        if (userId == peerId) return;
+        pending.merge(key(userId, peerId), new Marks(messageId, messageId), Marks::max);
+    }
+
+    /**
+     * @return Marks not written yet, as {deliveredUpTo, readUpTo}, or null if there are none.
+     */
+    public int[] peek(int userId, int peerId) {
+        Marks marks = pending.get(key(userId, peerId));
+        return marks != null ? new int[] { marks.delivered, marks.read } : null;
+    }
+
+    /**
+     * Writes everything pending and hands the results on.
+     */
+    void flush() {
+        try {
+            List<int[]> batch = new ArrayList<>();
+            for (Long key : pending.keySet()) {
+                // Acks arriving after this just start a new entry for the next flush
+                Marks marks = pending.remove(key);
+                if (marks == null) continue;
+                batch.add(new int[] { (int) (key >>> 32), (int) key.longValue(), marks.delivered, marks.read });
+                if (batch.size() == MAX_BATCH) {
+                    write(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            write(batch);
+        } catch (RuntimeException e) {
+            // Never let one bad flush kill the schedule
+            log.error("Error flushing receipts: {}", e.getMessage(), e);
+        }
+    }
+
+    private void write(List<int[]> batch) {
+        if (batch.isEmpty()) return;
+        List<Receipt> saved = dbManager.saveReceipts(batch);
+        if (saved == null) {
+            // The write failed; try again next time
+            for (int[] receipt : batch) {
+                pending.merge(key(receipt[0], receipt[1]), new Marks(receipt[2], receipt[3]), Marks::max);
+            }
+            return;
+        }
+        if (!saved.isEmpty()) {
+            onFlushed.accept(saved);
+        }
+    }
+
+    private static long key(int userId, int peerId) {
+        return ((long) userId << 32) | (peerId & 0xFFFFFFFFL);
+    }
+
+    private static final class Marks {
+        final int delivered;
+        final int read;
+
+        Marks(int delivered, int read) {
+            this.delivered = delivered;
+            this.read = read;
+        }
+
+        static Marks max(Marks a, Marks b) {
+            if (b.delivered <= a.delivered && b.read <= a.read) return a;
+            if (a.delivered <= b.delivered && a.read <= b.read) return b;
+            return new Marks(Math.max(a.delivered, b.delivered), Math.max(a.read, b.read));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.chatapp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of which users are online in which rooms.
+ *
+ * A user's rooms are loaded when they log in, so sending a message to a
+ * room never has to ask the database who the members are. Membership is
+ * kept per user rather than per connection: a message goes to all of a
+ * member's sessions, and leaving a room leaves it on every device.
+ */
+public class RoomRegistry {
+
+    // room_id -> the room's members who are online right now
+    private final Map<Integer, Set<Integer>> onlineMembers = new ConcurrentHashMap<>();
+
+    // user_id -> the rooms they are in, so they can be removed everywhere when they go offline
+    private final Map<Integer, Set<Integer>> roomsByUser = new ConcurrentHashMap<>();
+
+    // Room names are immutable, so these only ever grow
+    private final Map<String, Integer> roomIdsByName = new ConcurrentHashMap<>();
+    private final Map<Integer, String> roomNamesById = new ConcurrentHashMap<>();
+
+    /**
+     * Records that a user is online in a room.
+     */
+    public void addMember(int roomId, String roomName, int userId) {
+        roomIdsByName.put(roomName, roomId);
+        roomNamesById.put(roomId, roomName);
+        onlineMembers.computeIfAbsent(roomId, id -> ConcurrentHashMap.newKeySet()).add(userId);
+        roomsByUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(roomId);
+    }
+
+    /**
+     * Takes a user out of one room (they left it).
+     */
+    public void removeMember(int roomId, int userId) {
+        Set<Integer> members = onlineMembers.get(roomId);
+        if (members != null) {
+            members.remove(userId);
+        }
+        Set<Integer> rooms = roomsByUser.get(userId);
+        if (rooms != null) {
+            rooms.remove(roomId);
+        }
+    }
+
+    /**
+     * Takes a user out of every room (their last session closed).
+     */
+    public void removeUser(int userId) {
+        Set<Integer> rooms = roomsByUser.remove(userId);
+        if (rooms == null) return;
+        for (int roomId : rooms) {
+            Set<Integer> members = onlineMembers.get(roomId);
+            if (members != null) {
+                members.remove(userId);
+            }
+        }
+    }
+
+    public boolean isOnlineMember(int roomId, int userId) {
+        Set<Integer> members = onlineMembers.get(roomId);
+        return members != null && members.contains(userId);
+    }
+
+    public Set<Integer> getOnlineMembers(int roomId) {
+        Set<Integer> members = onlineMembers.get(roomId);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    /**
+     * @return The room's ID if any member has been seen online, otherwise -1.
+     */
+    public int getRoomId(String roomName) {
+        Integer roomId = roomIdsByName.get(roomName);
+        return roomId != null ? roomId : -1;
+    }
+
+    public String getRoomName(int roomId) {
+        return roomNamesById.get(roomId);
+    }
+
+    public Set<Integer> getRooms(int userId) {
+        Set<Integer> rooms = roomsByUser.get(userId);
+        return rooms != null ? rooms : Collections.emptySet();
+    }
+}
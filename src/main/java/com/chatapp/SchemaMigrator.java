@@ -0,0 +1,391 @@
+package com.chatapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies versioned schema migrations on startup.
+ *
+ * Every migration runs exactly once, in version order, and is recorded in the
+ * 'schema_version' table. Migrations must be idempotent so a run that dies half
+ * way through can simply be retried on the next boot.
+ *
+ * Indexes are built with CREATE INDEX CONCURRENTLY, so a live deployment keeps
+ * accepting reads and writes while it is being upgraded.
+ */
+public class SchemaMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(SchemaMigrator.class);
+
+    // Arbitrary key for pg_advisory_lock, so two servers booting at once don't both migrate
+    private static final long MIGRATION_LOCK_KEY = 4_126_026L;
+
+    // Don't queue behind long-running transactions while holding up everyone else
+    private static final String LOCK_TIMEOUT = "10s";
+
+    private final List<Migration> migrations = new ArrayList<>();
+
+    public SchemaMigrator() {
+        // --- Version 1: normalized conversation key for message history ---
+        // (a,b) and (b,a) map to the same (LEAST, GREATEST) key, so the history
+        // query becomes a single index range scan instead of an OR over the table.
+        add(1, "conversation key index on private_messages", conn ->
+            createIndexConcurrently(conn, "idx_private_messages_conversation",
+                "private_messages ((LEAST(sender_id, receiver_id)), (GREATEST(sender_id, receiver_id)), message_id)"));
+
+        // --- Version 2: per-user indexes on friendships ---
+        // The unique constraint already covers lookups by user_one_id; user_two_id had nothing.
+        add(2, "per-user indexes on friendships", conn -> {
+            createIndexConcurrently(conn, "idx_friendships_user_one_status",
+                "friendships (user_one_id, status)");
+            createIndexConcurrently(conn, "idx_friendships_user_two_status",
+                "friendships (user_two_id, status)");
+        });
+
+        // --- Version 3: group chat rooms ---
+        // New tables, so plain CREATE INDEX is fine (nothing to lock out yet)
+        add(3, "rooms, room_members and room_messages", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS rooms ("
+                        + "room_id SERIAL PRIMARY KEY,"
+                        + "name VARCHAR(100) NOT NULL UNIQUE,"
+                        + "created_by INT NOT NULL REFERENCES users(user_id),"
+                        + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
+                        + ");");
+                stmt.execute("CREATE TABLE IF NOT EXISTS room_members ("
+                        + "room_id INT NOT NULL REFERENCES rooms(room_id),"
+                        + "user_id INT NOT NULL REFERENCES users(user_id),"
+                        + "joined_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,"
+                        + "PRIMARY KEY (room_id, user_id)"
+                        + ");");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_room_members_user ON room_members (user_id)");
+                stmt.execute("CREATE TABLE IF NOT EXISTS room_messages ("
+                        + "message_id SERIAL PRIMARY KEY,"
+                        + "room_id INT NOT NULL REFERENCES rooms(room_id),"
+                        + "sender_id INT NOT NULL REFERENCES users(user_id),"
+                        + "message_text TEXT NOT NULL,"
+                        + "sent_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
+                        + ");");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_room_messages_room ON room_messages (room_id, message_id)");
+            }
+        });
+
+        // --- Version 4: full-text search over private messages ---
+        // An expression index rather than a stored tsvector column: adding a
+        // generated column would rewrite (and lock) the whole table.
+        add(4, "full-text index on private_messages.message_text", conn ->
+            createIndexConcurrently(conn, "idx_private_messages_text_search",
+                "private_messages USING GIN (to_tsvector('simple', message_text))"));
+
+        // --- Version 5: compressed archive of old private messages ---
+        add(5, "private_message_archive segments", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS private_message_archive ("
+                        + "segment_id SERIAL PRIMARY KEY,"
+                        + "user_low INT NOT NULL,"     // LEAST(sender_id, receiver_id)
+                        + "user_high INT NOT NULL,"    // GREATEST(sender_id, receiver_id)
+                        + "first_message_id INT NOT NULL,"
+                        + "last_message_id INT NOT NULL,"
+                        + "first_sent_at TIMESTAMP NOT NULL,"
+                        + "last_sent_at TIMESTAMP NOT NULL,"
+                        + "message_count INT NOT NULL,"
+                        + "payload BYTEA NOT NULL,"    // gzip, see MessageArchiver
+                        + "search_tsv TSVECTOR NOT NULL"
+                        + ");");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_archive_conversation "
+                        + "ON private_message_archive (user_low, user_high, last_message_id)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_archive_search "
+                        + "ON private_message_archive USING GIN (search_tsv)");
+            }
+            // Lets the archiver find old messages without scanning the hot table
+            createIndexConcurrently(conn, "idx_private_messages_sent_at", "private_messages (sent_at)");
+        });
+
+        // --- Version 6: delivery/read receipts ---
+        // One row per (reader, peer) holding high-water marks, not one row per message.
+        add(6, "conversation_read_state", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS conversation_read_state ("
+                        + "user_id INT NOT NULL REFERENCES users(user_id),"  // The reader
+                        + "peer_id INT NOT NULL REFERENCES users(user_id),"  // Whose messages they received/read
+                        + "last_delivered_message_id INT NOT NULL DEFAULT 0,"
+                        + "last_read_message_id INT NOT NULL DEFAULT 0,"
+                        + "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,"
+                        + "PRIMARY KEY (user_id, peer_id)"
+                        + ");");
+            }
+        });
+
+        // --- Version 7: file attachments ---
+        // Only metadata lives here; the bytes are files managed by AttachmentStore.
+        add(7, "attachments", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS attachments ("
+                        + "attachment_id SERIAL PRIMARY KEY,"
+                        + "uploader_id INT NOT NULL REFERENCES users(user_id),"
+                        + "receiver_id INT NOT NULL REFERENCES users(user_id),"
+                        + "file_name VARCHAR(255) NOT NULL,"
+                        + "size_bytes BIGINT NOT NULL,"
+                        + "sha256 CHAR(64) NOT NULL,"
+                        + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
+                        + ");");
+            }
+        });
+
+        // --- Version 8: idempotent sends ---
+        // A retried send carries the same client_message_id, and the unique index
+        // turns the second insert into a no-op. Old clients send none (NULL), which never conflicts.
+        add(8, "client_message_id on private_messages", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("ALTER TABLE private_messages ADD COLUMN IF NOT EXISTS client_message_id VARCHAR(64)");
+            }
+            createIndexConcurrently(conn, "idx_private_messages_client_id",
+                    "private_messages (sender_id, client_message_id) WHERE client_message_id IS NOT NULL", true);
+        });
+
+        // --- Version 9: inbox ---
+        // One row per (user, peer): the last message and how many are unread.
+        // Kept up to date by savePrivateMessage and by read receipts. Existing
+        // conversations are backfilled with nothing unread (there were no read marks before),
+        // including ones whose messages have all been archived.
+        add(9, "conversation_summaries", conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE IF NOT EXISTS conversation_summaries ("
+                        + "user_id INT NOT NULL REFERENCES users(user_id),"
+                        + "peer_id INT NOT NULL REFERENCES users(user_id),"
+                        + "last_message_id INT NOT NULL,"
+                        + "last_sender_id INT NOT NULL,"
+                        + "last_message_text VARCHAR(200) NOT NULL," // Preview only
+                        + "last_sent_at TIMESTAMP NOT NULL,"
+                        + "unread_count INT NOT NULL DEFAULT 0,"
+                        + "PRIMARY KEY (user_id, peer_id)"
+                        + ");");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_conversation_summaries_recent "
+                        + "ON conversation_summaries (user_id, last_message_id DESC)");
+            }
+            backfillConversationSummaries(conn);
+        });
+    }
+
+    /**
+     * Registers a migration. Versions must be added in increasing order.
+     */
+    private void add(int version, String description, Step step) {
+        if (!migrations.isEmpty() && migrations.get(migrations.size() - 1).version >= version) {
+            throw new IllegalStateException("Migration versions must increase: " + version);
+        }
+        migrations.add(new Migration(version, description, step));
+    }
+
+    /**
+     * Brings the schema up to the latest version.
+     * The connection is left in auto-commit mode, since concurrent index
+     * builds cannot run inside a transaction block.
+     */
+    public void migrate(Connection conn) throws SQLException {
+        conn.setAutoCommit(true);
+        // Index builds and backfills can run far longer than any normal query
+        int networkTimeout = conn.getNetworkTimeout();
+        conn.setNetworkTimeout(Runnable::run, 0);
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version ("
+                    + "version INT PRIMARY KEY,"
+                    + "description VARCHAR(255) NOT NULL,"
+                    + "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP"
+                    + ");");
+            stmt.execute("SET lock_timeout = '" + LOCK_TIMEOUT + "'");
+            stmt.execute("SET statement_timeout = 0");
+            stmt.execute("SELECT pg_advisory_lock(" + MIGRATION_LOCK_KEY + ")");
+        }
+
+        try {
+            int current = getCurrentVersion(conn);
+            for (Migration migration : migrations) {
+                if (migration.version <= current) continue;
+
+                log.info("Applying schema migration {}: {}", migration.version, migration.description);
+                migration.step.apply(conn);
+                recordVersion(conn, migration);
+            }
+            log.info("Database schema is at version {}.", getCurrentVersion(conn));
+        } finally {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SELECT pg_advisory_unlock(" + MIGRATION_LOCK_KEY + ")");
+                stmt.execute("RESET lock_timeout");
+                stmt.execute("RESET statement_timeout");
+            }
+            conn.setNetworkTimeout(Runnable::run, networkTimeout);
+        }
+    }
+
+    private int getCurrentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private void recordVersion(Connection conn, Migration migration) throws SQLException {
+        String sql = "INSERT INTO schema_version (version, description) VALUES (?, ?) "
+                   + "ON CONFLICT (version) DO NOTHING";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, migration.version);
+            pstmt.setString(2, migration.description);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // --- Migration Helpers ---
+
+    // Backfill batches: hot messages by message_id range, archived conversations by count
+    private static final int BACKFILL_MESSAGES_PER_BATCH = 50_000;
+    private static final int BACKFILL_SEGMENTS_PER_BATCH = 200;
+
+    // Keeps whichever message is newer, so batches can land in any order and
+    // live writes from servers that are already running win over the backfill
+    private static final String SUMMARY_UPSERT = "ON CONFLICT (user_id, peer_id) DO UPDATE SET "
+            + "last_message_id = EXCLUDED.last_message_id, last_sender_id = EXCLUDED.last_sender_id, "
+            + "last_message_text = EXCLUDED.last_message_text, last_sent_at = EXCLUDED.last_sent_at "
+            + "WHERE conversation_summaries.last_message_id < EXCLUDED.last_message_id";
+
+    /**
+     * Fills conversation_summaries from the hot table and the archive, in
+     * short statements rather than one pass over every message.
+     */
+    static void backfillConversationSummaries(Connection conn) throws SQLException {
+        int maxMessageId;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(message_id), 0) FROM private_messages")) {
+            rs.next();
+            maxMessageId = rs.getInt(1);
+        }
+
+        // Newest message per (user, peer) within each message_id range
+        String hotSql = "WITH m AS (SELECT * FROM private_messages WHERE message_id > ? AND message_id <= ?) "
+                + "INSERT INTO conversation_summaries "
+                + "(user_id, peer_id, last_message_id, last_sender_id, last_message_text, last_sent_at, unread_count) "
+                + "SELECT DISTINCT ON (p.user_id, p.peer_id) p.user_id, p.peer_id, p.message_id, p.sender_id, "
+                + "LEFT(p.message_text, 200), COALESCE(p.sent_at, CURRENT_TIMESTAMP), 0 FROM ("
+                + "SELECT sender_id AS user_id, receiver_id AS peer_id, message_id, sender_id, message_text, sent_at FROM m "
+                + "UNION ALL "
+                + "SELECT receiver_id, sender_id, message_id, sender_id, message_text, sent_at FROM m"
+                + ") p ORDER BY p.user_id, p.peer_id, p.message_id DESC "
+                + SUMMARY_UPSERT;
+        try (PreparedStatement pstmt = conn.prepareStatement(hotSql)) {
+            for (int from = 0; from < maxMessageId; from += BACKFILL_MESSAGES_PER_BATCH) {
+                pstmt.setInt(1, from);
+                pstmt.setInt(2, from + BACKFILL_MESSAGES_PER_BATCH);
+                pstmt.executeUpdate();
+            }
+        }
+
+        // Conversations that were archived keep their last message only inside
+        // the newest segment's payload, so those are unpacked here
+        String segmentSql = "SELECT DISTINCT ON (user_low, user_high) user_low, user_high, payload "
+                + "FROM private_message_archive WHERE (user_low, user_high) > (?, ?) "
+                + "ORDER BY user_low, user_high, last_message_id DESC LIMIT ?";
+        String insertSql = "INSERT INTO conversation_summaries "
+                + "(user_id, peer_id, last_message_id, last_sender_id, last_message_text, last_sent_at, unread_count) "
+                + "VALUES (?, ?, ?, ?, ?, ?, 0) " + SUMMARY_UPSERT;
+        int afterLow = 0;
+        int afterHigh = 0;
+        try (PreparedStatement segments = conn.prepareStatement(segmentSql);
+             PreparedStatement insert = conn.prepareStatement(insertSql)) {
+            while (true) {
+                segments.setInt(1, afterLow);
+                segments.setInt(2, afterHigh);
+                segments.setInt(3, BACKFILL_SEGMENTS_PER_BATCH);
+                int found = 0;
+                try (ResultSet rs = segments.executeQuery()) {
+                    while (rs.next()) {
+                        found++;
+                        afterLow = rs.getInt("user_low");
+                        afterHigh = rs.getInt("user_high");
+                        List<MessageArchiver.ArchivedMessage> messages = MessageArchiver.decode(rs.getBytes("payload"));
+                        if (messages.isEmpty()) continue;
+                        MessageArchiver.ArchivedMessage last = messages.get(messages.size() - 1);
+                        // 200 code points, like LEFT(message_text, 200)
+                        String preview = last.text.codePointCount(0, last.text.length()) > 200
+                                ? last.text.substring(0, last.text.offsetByCodePoints(0, 200)) : last.text;
+                        for (int side = 0; side < 2; side++) {
+                            insert.setInt(1, side == 0 ? last.senderId : last.receiverId);
+                            insert.setInt(2, side == 0 ? last.receiverId : last.senderId);
+                            insert.setInt(3, last.messageId);
+                            insert.setInt(4, last.senderId);
+                            insert.setString(5, preview);
+                            insert.setTimestamp(6, new Timestamp(last.sentAtMillis));
+                            insert.addBatch();
+                        }
+                    }
+                }
+                if (found > 0) insert.executeBatch();
+                if (found < BACKFILL_SEGMENTS_PER_BATCH) break;
+            }
+        }
+    }
+
+    /**
+     * Builds an index without blocking writes to the table.
+     * A previous concurrent build that failed leaves an INVALID index behind,
+     * which IF NOT EXISTS would happily skip, so that one is dropped and rebuilt.
+     */
+    static void createIndexConcurrently(Connection conn, String indexName, String definition) throws SQLException {
+        createIndexConcurrently(conn, indexName, definition, false);
+    }
+
+    /**
+     * Same, optionally as a UNIQUE index.
+     */
+    static void createIndexConcurrently(Connection conn, String indexName, String definition, boolean unique) throws SQLException {
+        String checkSql = "SELECT i.indisvalid FROM pg_class c "
+                        + "JOIN pg_index i ON i.indexrelid = c.oid "
+                        + "WHERE c.relname = ?";
+
+        try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+            pstmt.setString(1, indexName);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    if (rs.getBoolean(1)) return; // Already built
+                    try (Statement stmt = conn.createStatement()) {
+                        log.warn("Dropping invalid index left by an earlier run: {}", indexName);
+                        stmt.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+                    }
+                }
+            }
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE " + (unique ? "UNIQUE " : "") + "INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON " + definition);
+        }
+    }
+
+    /**
+     * One unit of schema change.
+     */
+    interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step step;
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.chatapp;
+
+import java.util.Arrays;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+/**
+ * Which connections each online user has. A user can be logged in from
+ * several devices at once, and is online for as long as any of them is.
+ *
+ * Each user's sessions are a small copy-on-write array: lookups (every
+ * delivery) just read the array, and only login/logout allocate a new one.
+ * The arrays live in an int-keyed ConcurrentIntMap, and presence is also
+ * kept in an OnlineBitSet, so the hot paths never box a user id.
+ *
+ * Logins and logouts take one lock; lookups never do.
+ */
+public class SessionRegistry {
+
+    // Logins past this many concurrent sessions are refused
+    static final int MAX_SESSIONS_PER_USER = 8;
+
+    private static final WebSocket[] NONE = new WebSocket[0];
+
+    // user_id -> that user's open connections (never empty; absent when offline)
+    private final ConcurrentIntMap<WebSocket[]> sessions = new ConcurrentIntMap<>();
+
+    // user_id -> online, kept in step with 'sessions'
+    private final OnlineBitSet online = new OnlineBitSet();
+
+    private final Object writeLock = new Object();
+
+    // Open sessions across all users; only changed under writeLock
+    private volatile int sessionCount;
+
+    /**
+     * Adds a session for a user.
+     * @return How many sessions the user has now (1 means they just came online),
+     *         or -1 if they already have the maximum.
+     */
+    public int add(int userId, WebSocket conn) {
+        synchronized (writeLock) {
+            WebSocket[] current = sessions.get(userId);
+            if (current == null) {
+                sessions.put(userId, new WebSocket[] { conn });
+                online.set(userId, true);
+                sessionCount++;
+                return 1;
+            }
+            for (WebSocket existing : current) {
+                if (existing == conn) return current.length;
+            }
+            if (current.length >= MAX_SESSIONS_PER_USER) {
+                return -1;
+            }
+            WebSocket[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = conn;
+            sessions.put(userId, next);
+            sessionCount++;
+            return next.length;
+        }
+    }
+
+    /**
+     * Removes one of a user's sessions.
+     * @return True if that was their last one (they are now offline).
+     */
+    public boolean remove(int userId, WebSocket conn) {
+        synchronized (writeLock) {
+            WebSocket[] current = sessions.get(userId);
+            if (current == null) return false;
+
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == conn) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) return false;
+            sessionCount--;
+            if (current.length == 1) {
+                online.set(userId, false);
+                sessions.remove(userId);
+                return true;
+            }
+            WebSocket[] next = new WebSocket[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, next.length - index);
+            sessions.put(userId, next);
+            return false;
+        }
+    }
+
+    /**
+     * @return The user's open connections; empty (never null) if they are offline.
+     *         The array must not be modified.
+     */
+    public WebSocket[] get(int userId) {
+        WebSocket[] conns = sessions.get(userId);
+        return conns != null ? conns : NONE;
+    }
+
+    public boolean isOnline(int userId) {
+        return online.get(userId);
+    }
+
+    /**
+     * @return How many sessions are open, across all users.
+     */
+    public int sessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Sends one frame to every session of a user.
+     * @return How many sessions it went to.
+     */
+    public int send(int userId, String frame) {
+        WebSocket[] conns = get(userId);
+        for (WebSocket conn : conns) {
+            sendQuietly(conn, frame);
+        }
+        return conns.length;
+    }
+
+    /**
+     * Sends one frame to every open session of every online user.
+     * @return How many sessions it went to.
+     */
+    public int sendToAll(String frame) {
+        int[] sent = { 0 };
+        sessions.forEachValue(conns -> {
+            for (WebSocket conn : conns) {
+                sendQuietly(conn, frame);
+            }
+            sent[0] += conns.length;
+        });
+        return sent[0];
+    }
+
+    static void sendQuietly(WebSocket conn, String frame) {
+        try {
+            conn.send(frame);
+        } catch (WebsocketNotConnectedException e) {
+            // Closed while we were sending; onClose takes it out of the table
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.chatapp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A bounded single-producer, single-consumer queue.
+ *
+ * One thread offers, one other thread polls, and neither ever takes a lock
+ * or does a compare-and-set: each side only writes its own index, and
+ * publishes it with a release store that the other side reads with an
+ * acquire load. The capacity is a power of two, so wrapping is a mask.
+ *
+ * Each index is padded onto its own cache line, so the producer bumping
+ * 'tail' doesn't keep invalidating the line the consumer reads 'head' from.
+ */
+public class SpscRing<E> {
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscRing.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscRing.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object[] slots;
+    private final int mask;
+
+    @SuppressWarnings("unused") private long p01, p02, p03, p04, p05, p06, p07;
+    private long head; // Next slot to poll; written by the consumer only
+    @SuppressWarnings("unused") private long p11, p12, p13, p14, p15, p16, p17;
+    private long tail; // Next slot to fill; written by the producer only
+    @SuppressWarnings("unused") private long p21, p22, p23, p24, p25, p26, p27;
+
+    // The producer's last look at 'head', so it only re-reads it when the ring seems full
+    private long cachedHead;
+
+    /**
+     * @param capacity Rounded up to a power of two.
+     */
+    public SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side.
+     * @return False if the ring is full.
+     */
+    public boolean offer(E element) {
+        long t = tail;
+        if (t - cachedHead >= slots.length) {
+            cachedHead = (long) HEAD.getAcquire(this);
+            if (t - cachedHead >= slots.length) return false;
+        }
+        SLOTS.set(slots, (int) t & mask, element);
+        TAIL.setRelease(this, t + 1); // Publishes the element along with the index
+        return true;
+    }
+
+    /**
+     * Consumer side.
+     * @return The oldest element, or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head;
+        if (h == (long) TAIL.getAcquire(this)) return null;
+        int index = (int) h & mask;
+        E element = (E) SLOTS.get(slots, index);
+        SLOTS.set(slots, index, null); // Don't keep it reachable
+        HEAD.setRelease(this, h + 1);
+        return element;
+    }
+
+    /**
+     * Either side; only a hint while the other side is active.
+     */
+    public boolean isEmpty() {
+        return (long) HEAD.getAcquire(this) == (long) TAIL.getAcquire(this);
+    }
+}
@@ -0,0 +1,71 @@
+package com.chatapp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every user's ID and username, kept in memory so that turning a name from
+ * a request into an ID (or back) doesn't cost a query.
+ *
+ * Loaded in one pass at startup. Anyone missing (registered elsewhere, or
+ * the load failed) is looked up in the database once and remembered.
+ * Usernames never change, so an entry never goes stale.
+ */
+public class UserDirectory {
+
+    private final DatabaseManager dbManager;
+
+    private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private final Map<Integer, String> namesById = new ConcurrentHashMap<>();
+
+    public UserDirectory(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    /**
+     * Loads every user from the database.
+     * @return How many users were loaded, or -1 if the load failed.
+     */
+    public int load() {
+        Map<Integer, String> users = dbManager.getAllUsers();
+        if (users == null) return -1;
+        for (Map.Entry<Integer, String> user : users.entrySet()) {
+            add(user.getKey(), user.getValue());
+        }
+        return users.size();
+    }
+
+    /**
+     * @return The user's ID, or -1 if there is no such user.
+     */
+    public int getUserId(String username) {
+        Integer userId = idsByName.get(username);
+        if (userId != null) return userId;
+
+        // Not remembered; unknown names are not cached, since they may register any moment
+        int loaded = dbManager.getUserId(username);
+        if (loaded != -1) add(loaded, username);
+        return loaded;
+    }
+
+    /**
+     * @return The user's name, or null if there is no such user.
+     */
+    public String getUsername(int userId) {
+        String username = namesById.get(userId);
+        if (username != null) return username;
+
+        username = dbManager.getUsername(userId);
+        if (username != null) add(userId, username);
+        return username;
+    }
+
+    public void add(int userId, String username) {
+        namesById.put(userId, username);
+        idsByName.put(username, userId);
+    }
+
+    public int size() {
+        return namesById.size();
+    }
+}
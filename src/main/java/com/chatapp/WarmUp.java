@@ -0,0 +1,141 @@
+package com.chatapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The startup phase that fills the caches before the server takes any
+ * connections, so a wave of reconnecting clients finds them warm instead of
+ * all going to the database at once.
+ *
+ * Steps run in parallel, each on its own thread (and so its own connection).
+ * A step that fails only costs its cache's warmth: that data is then loaded
+ * lazily, as before. Past the timeout the server starts anyway and any step
+ * still running finishes in the background.
+ */
+public class WarmUp {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmUp.class);
+
+    private static final class Step {
+        final String name;
+        final IntSupplier loader;
+        volatile String state = "pending"; // pending, running, done, failed
+        volatile int loaded;
+        volatile long startedAt;
+        volatile long finishedAt;
+
+        Step(String name, IntSupplier loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+    }
+
+    private final Map<String, Step> steps = new LinkedHashMap<>();
+    private volatile long startedAt;
+    private volatile boolean finished;
+
+    /**
+     * Adds a step. Call before run().
+     * @param loader Loads its data and returns how many items it loaded, or -1 if it failed.
+     */
+    public void add(String name, IntSupplier loader) {
+        steps.put(name, new Step(name, loader));
+    }
+
+    /**
+     * Runs every step in parallel and waits for them.
+     * @return True if every step finished in time and succeeded.
+     */
+    public boolean run(long timeoutMs) {
+        startedAt = System.currentTimeMillis();
+        CountDownLatch done = new CountDownLatch(steps.size());
+        for (Step step : steps.values()) {
+            Thread thread = new Thread(() -> {
+                try {
+                    runStep(step);
+                } finally {
+                    done.countDown();
+                }
+            }, "warm-up-" + step.name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean inTime;
+        try {
+            inTime = done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            inTime = false;
+        }
+        finished = true;
+
+        boolean succeeded = inTime && steps.values().stream().allMatch(step -> step.state.equals("done"));
+        if (inTime) {
+            log.info("Warm-up finished in {} ms{}", System.currentTimeMillis() - startedAt,
+                    succeeded ? "" : "; failed steps will load lazily");
+        } else {
+            log.warn("Warm-up still running after {} ms; starting anyway", timeoutMs);
+        }
+        return succeeded;
+    }
+
+    private void runStep(Step step) {
+        step.startedAt = System.currentTimeMillis();
+        step.state = "running";
+        int loaded;
+        try {
+            loaded = step.loader.getAsInt();
+        } catch (RuntimeException e) {
+            log.error("Warm-up step '{}' failed: {}", step.name, e.getMessage());
+            loaded = -1;
+        }
+        step.finishedAt = System.currentTimeMillis();
+        step.loaded = Math.max(loaded, 0);
+        step.state = loaded < 0 ? "failed" : "done";
+        log.info("Warm-up step '{}' {}: {} loaded in {} ms", step.name, step.state, step.loaded,
+                step.finishedAt - step.startedAt);
+    }
+
+    /**
+     * @return True once run() has returned (whether or not every step made it).
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Progress of every step, for the health endpoint.
+     */
+    public JSONObject toJson() {
+        long now = System.currentTimeMillis();
+        JSONObject json = new JSONObject();
+        int done = 0;
+        JSONObject stepsJson = new JSONObject();
+        for (Step step : steps.values()) {
+            JSONObject stepJson = new JSONObject();
+            stepJson.put("state", step.state);
+            stepJson.put("loaded", step.loaded);
+            if (step.startedAt != 0) {
+                stepJson.put("elapsedMs", (step.finishedAt != 0 ? step.finishedAt : now) - step.startedAt);
+            }
+            stepsJson.put(step.name, stepJson);
+            if (step.finishedAt != 0) done++;
+        }
+        json.put("stepsDone", done);
+        json.put("stepsTotal", steps.size());
+        json.put("steps", stepsJson);
+        if (startedAt != 0) {
+            json.put("elapsedMs", now - startedAt);
+        }
+        return json;
+    }
+}
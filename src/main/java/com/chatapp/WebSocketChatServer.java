@@ -4,60 +4,194 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.chatapp.DatabaseManager.ConversationSummary;
 import com.chatapp.DatabaseManager.Message; 
+import com.chatapp.DatabaseManager.Receipt;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
 import java.text.SimpleDateFormat; 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 public class WebSocketChatServer extends WebSocketServer {
 
+    private static final Logger log = LoggerFactory.getLogger(WebSocketChatServer.class);
+
     private static DatabaseManager dbManager;
     
-    // Maps a user_id (Integer) to their active WebSocket connection.
-    private Map<Integer, WebSocket> onlineUsers = new ConcurrentHashMap<>();
+    // Spooled uploads and stored attachment files
+    private static AttachmentStore attachments;
+    
+    // Warm-up progress and readiness, on localhost
+    private static HealthServer health;
+    
+    // How long startup waits for the caches to warm before taking connections anyway
+    private static final long WARM_UP_TIMEOUT_MS =
+            TimeUnit.SECONDS.toMillis(Long.parseLong(DataSourceRouter.env("CHAT_WARMUP_TIMEOUT_SECONDS", "60")));
+    
+    // How many of the most recently active users get their inboxes loaded at startup
+    private static final int WARM_CONVERSATION_USERS =
+            Integer.parseInt(DataSourceRouter.env("CHAT_WARM_CONVERSATION_USERS", "1000"));
+    
+    // Maps a user_id to all of their open connections (one per device),
+    // sharded by user id; each shard delivers to its own users on its own thread
+    private final DeliveryShards sessions = new DeliveryShards();
+    
+    // Which online connections are in which rooms
+    private final RoomRegistry rooms = new RoomRegistry();
+    
+    // Versioned friends + pending lists of online users
+    private final ContactListCache contactLists = new ContactListCache();
+    
+    // Inboxes (last message + unread count per conversation) of online users
+    private final ConversationCache conversations = new ConversationCache();
+    
+    // Every user's ID and name, so requests naming a user don't cost a query
+    private final UserDirectory directory;
+    
+    // Friendships as of startup, for building contact lists on reconnect
+    private final FriendGraph friendGraph;
+    
+    // Largest page of history a client can ask for
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+    
+    // Largest page of search results a client can ask for
+    private static final int MAX_SEARCH_PAGE_SIZE = 50;
+    
+    // Room names: up to the rooms.name column's 100 characters, of letters, digits, spaces, '.', '_' and '-'
+    private static final int MAX_ROOM_NAME_LENGTH = 100;
+    private static final Pattern ROOM_NAME = Pattern.compile("[\\p{L}\\p{N} ._-]+");
+    
+    // Per-connection and per-user request budgets
+    private final RateLimiter rateLimiter = new RateLimiter();
+    
+    // Requests served from memory alone, which keep working while the database is down
+    private static final Set<String> LIVE_TYPES = Set.of("start_typing", "stop_typing", "private_message",
+            "room_message", "get_contact_list", "get_rooms", "mark_read");
+    
+    // Throttled requests allowed per window before we hang up on the client
+    private static final int MAX_THROTTLED_PER_WINDOW = 50;
+    private static final long THROTTLE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    // Recent sends by client message id, so retries aren't saved or delivered twice
+    private final DedupWindow recentSends = new DedupWindow();
+    
+    // Delivered/read acks, written and pushed to senders in periodic batches
+    private final ReceiptCoalescer receipts;
 
     /**
      * Constructor: Sets up the server on a specific port.
      */
     public WebSocketChatServer(int port) {
         super(new InetSocketAddress(port));
-        System.out.println("Attempting to start WebSocket server on port " + port);
+        receipts = new ReceiptCoalescer(dbManager, this::pushReceipts);
+        directory = new UserDirectory(dbManager);
+        friendGraph = new FriendGraph(dbManager);
+        dbManager.setDegradedListener(this::onDegradedChanged);
+        log.info("Attempting to start WebSocket server on port {}", port);
     }
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        System.out.println("🔗 New client connected: " + conn.getRemoteSocketAddress());
+        log.debug("🔗 New client connected: {}", conn.getRemoteSocketAddress());
+        conn.setAttachment(new ConnectionState());
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        System.out.println("👋 Client disconnected: " + conn.getRemoteSocketAddress());
+        log.debug("👋 Client disconnected: {}", conn.getRemoteSocketAddress());
+        ConnectionState state = conn.getAttachment();
         
-        Integer userId = conn.getAttachment();
-        
-        if (userId != null) {
-            onlineUsers.remove(userId);
-            // Tell everyone the user list has changed (they are offline)
-            broadcastUserListUpdate(); 
-            
-            // Tell anyone chatting with them that they stopped typing
-            broadcastTyping(userId, -1, false); // -1 for "all"
+        if (state != null && state.isLoggedIn()) {
+            detachUser(conn, state.getUserId());
         }
     }
 
     @Override
     public void onMessage(WebSocket conn, String message) {
+        ChatEvents.MessageDispatch event = ChatEvents.beginDispatch(); // null unless JFR events are enabled
+        try {
+            dispatch(conn, message, event);
+        } finally {
+            if (event != null) {
+                ConnectionState state = conn.getAttachment();
+                event.userId = state.getUserId(); // Read afterwards, so logins are attributed too
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * Binary frames carry attachment upload chunks (see AttachmentStore for the format).
+     */
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer bytes) {
+        ChatEvents.MessageDispatch event = ChatEvents.beginDispatch();
+        ConnectionState state = conn.getAttachment();
+        try {
+            if (!state.isLoggedIn()) {
+                conn.close(CloseFrame.POLICY_VALIDATION, "Authentication required.");
+                return;
+            }
+            
+            AttachmentStore.Upload upload = attachments.write(state.getUserId(), bytes);
+            if (upload != null) {
+                // Hashing a big file takes a while; don't hold up this connection's thread
+                attachments.execute(() -> finishUpload(upload));
+            }
+        } catch (IllegalArgumentException e) {
+            sendJsonError(conn, e.getMessage());
+        } catch (IOException e) {
+            log.error("Error writing upload chunk: {}", e.getMessage());
+            sendJsonError(conn, "Could not save upload.");
+        } finally {
+            if (event != null) {
+                event.type = "attachment_chunk";
+                event.userId = state.getUserId();
+                event.commit();
+            }
+        }
+    }
+    
+    private void dispatch(WebSocket conn, String message, ChatEvents.MessageDispatch event) {
         try {
             JSONObject json = new JSONObject(message);
             String type = json.getString("type");
+            if (event != null) event.type = type;
             
-            Integer userId = conn.getAttachment(); // User ID if logged in
+            ConnectionState state = conn.getAttachment();
+            
+            // Charge the request against its budget before doing any work
+            long retryAfterNanos = rateLimiter.tryAcquire(state.connectionBuckets, state.userBuckets, RateLimiter.categoryOf(type));
+            if (retryAfterNanos > 0) {
+                if (event != null) event.throttled = true;
+                handleThrottled(conn, state, type, retryAfterNanos);
+                return;
+            }
+            
+            // While the database is down, only what can be done from memory is attempted
+            if (dbManager.isDegraded() && !LIVE_TYPES.contains(type)
+                    && !(type.equals("login") && json.optString("password").equals("SESSION_RECONNECT"))) {
+                sendUnavailable(conn, type, "This is temporarily unavailable. Please try again shortly.");
+                return;
+            }
 
             // Auth actions can be done before being fully logged in
             if (type.equals("login")) {
@@ -70,7 +204,7 @@ public class WebSocketChatServer extends WebSocketServer {
             }
 
             // All actions below require a valid, logged-in user
-            if (userId == null) {
+            if (!state.isLoggedIn()) {
                 // Check for session reconnect
                 if (type.equals("login") && json.getString("password").equals("SESSION_RECONNECT")) {
                     handleLogin(conn, json); // Allow reconnect
@@ -79,17 +213,33 @@ public class WebSocketChatServer extends WebSocketServer {
                 }
                 return;
             }
+            int userId = state.getUserId();
 
             switch (type) {
                 case "get_contact_list": // Renamed from "get_user_list"
-                    handleGetContactList(conn, userId);
+                    handleGetContactList(conn, userId, json);
                     break;
                 case "get_message_history":
                     handleGetMessageHistory(conn, userId, json);
                     break;
+                case "get_conversations":
+                    handleGetConversations(conn, userId, json);
+                    break;
                 case "private_message":
                     handlePrivateMessage(conn, userId, json);
                     break;
+                case "search_messages":
+                    handleMessageSearch(conn, userId, json);
+                    break;
+                case "mark_read":
+                    handleMarkRead(conn, userId, json);
+                    break;
+                case "attachment_begin":
+                    handleAttachmentBegin(conn, userId, json);
+                    break;
+                case "attachment_download":
+                    handleAttachmentDownload(conn, userId, json);
+                    break;
                 case "start_typing":
                     handleTyping(userId, json, true);
                     break;
@@ -108,18 +258,133 @@ public class WebSocketChatServer extends WebSocketServer {
                     handleActionFriendRequest(conn, userId, json);
                     break;
                     
+                // --- ROOMS ---
+                case "create_room":
+                    handleCreateRoom(conn, userId, json);
+                    break;
+                case "join_room":
+                    handleJoinRoom(conn, userId, json);
+                    break;
+                case "leave_room":
+                    handleLeaveRoom(conn, userId, json);
+                    break;
+                case "room_message":
+                    handleRoomMessage(conn, userId, json);
+                    break;
+                case "get_rooms":
+                    handleGetRooms(conn, userId);
+                    break;
+                    
                 default:
                     sendJsonError(conn, "Unknown message type.");
             }
             
         } catch (JSONException e) {
-            System.err.println("Failed to parse JSON or missing 'type': " + message);
+            log.warn("Failed to parse JSON or missing 'type': {}", message);
             sendJsonError(conn, "Invalid JSON format.");
         }
     }
     
     // --- Message Handling Methods ---
     
+    /**
+     * Marks a connection as belonging to a logged-in user and adds it to their sessions.
+     * @return False if the user already has as many sessions as we allow.
+     */
+    private boolean attachUser(WebSocket conn, int userId) {
+        ConnectionState state = conn.getAttachment();
+        if (state.isLoggedIn() && state.getUserId() != userId) {
+            detachUser(conn, state.getUserId()); // Logging in again as someone else
+        }
+        
+        int sessionCount = sessions.add(userId, conn);
+        if (sessionCount == -1) {
+            sendJsonError(conn, "Too many active sessions. Log out on another device first.");
+            return false;
+        }
+        if (state.getUserId() != userId) {
+            state.setUser(userId, rateLimiter.acquireUserBuckets(userId));
+        }
+        loadRooms(userId);
+        return true;
+    }
+    
+    /**
+     * Removes one of a user's sessions. Only when the last one goes are they
+     * shown as offline.
+     */
+    private void detachUser(WebSocket conn, int userId) {
+        ConnectionState state = conn.getAttachment();
+        if (state.getUserId() == userId) {
+            state.setUser(-1, null);
+            rateLimiter.releaseUserBuckets(userId);
+        }
+        if (!sessions.remove(userId, conn)) return; // Still online elsewhere
+        
+        rooms.removeUser(userId);
+        contactLists.evict(userId);
+        conversations.evict(userId);
+        // Tell their online friends they are offline
+        notifyPresence(userId, false); 
+        
+        // Tell anyone chatting with them that they stopped typing
+        broadcastTyping(userId, -1, false); // -1 for "all"
+    }
+    
+    /**
+     * Rejects a request that's over budget. Clients that keep going
+     * regardless are disconnected.
+     */
+    private void handleThrottled(WebSocket conn, ConnectionState state, String type, long retryAfterNanos) {
+        long now = System.nanoTime();
+        if (now - state.throttleWindowStart > THROTTLE_WINDOW_NANOS) {
+            state.throttleWindowStart = now;
+            state.throttledCount = 0;
+        }
+        
+        if (++state.throttledCount > MAX_THROTTLED_PER_WINDOW) {
+            log.warn("Disconnecting client for ignoring rate limits: {}", conn.getRemoteSocketAddress());
+            conn.close(CloseFrame.POLICY_VALIDATION, "Rate limit exceeded.");
+            return;
+        }
+        
+        JSONObject errorJson = new JSONObject();
+        errorJson.put("type", "error");
+        errorJson.put("code", "rate_limited");
+        errorJson.put("message", "Too many requests. Please slow down.");
+        errorJson.put("requestType", type);
+        errorJson.put("retryAfterMs", Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos)));
+        sendJsonMessage(conn, errorJson.toString());
+    }
+    
+    /**
+     * Answers a request that needs the database while it is unavailable.
+     */
+    private void sendUnavailable(WebSocket conn, String type, String message) {
+        JSONObject errorJson = new JSONObject();
+        errorJson.put("type", "error");
+        errorJson.put("code", "unavailable");
+        errorJson.put("message", message);
+        errorJson.put("requestType", type);
+        sendJsonMessage(conn, errorJson.toString());
+    }
+    
+    /**
+     * Tells every client when the server goes into or out of live-only mode,
+     * so they can grey out what won't work.
+     */
+    private void onDegradedChanged(boolean degraded) {
+        if (degraded) {
+            log.warn("Database unavailable; running in live-only mode");
+        } else {
+            log.info("Database is back; leaving live-only mode");
+        }
+        JSONObject status = new JSONObject();
+        status.put("type", "server_status");
+        status.put("degraded", degraded);
+        sessions.sendToAll(status.toString());
+    }
+    
     private void handleRegistration(WebSocket conn, JSONObject json) {
         String user = json.getString("username");
         String pass = json.getString("password");
@@ -137,12 +402,13 @@ public class WebSocketChatServer extends WebSocketServer {
         
         // Handle session reconnect
         if (pass.equals("SESSION_RECONNECT")) {
-            Integer userId = dbManager.getUserId(user); // Get ID from username
+            int userId = directory.getUserId(user); // Get ID from username
             if (userId != -1) {
-                System.out.println("User reconnected: " + user);
-                conn.setAttachment(userId); // Re-attach the ID
-                onlineUsers.put(userId, conn);
-                broadcastUserListUpdate();
+                log.info("User reconnected: {}", user);
+                if (!attachUser(conn, userId)) return; // Re-attach the ID
+                loadContactList(userId);
+                pushContactList(userId);
+                notifyPresence(userId, true);
                 return;
             } else {
                  sendJsonError(conn, "Session reconnect failed. User not found.");
@@ -151,18 +417,24 @@ public class WebSocketChatServer extends WebSocketServer {
         }
 
         int userId = dbManager.loginUser(user, pass);
+        if (userId == DatabaseManager.LOGIN_UNAVAILABLE) {
+            sendUnavailable(conn, "login", "Logging in isn't possible right now. Please try again shortly.");
+            return;
+        }
         
         if (userId != -1) { // Login successful
-            conn.setAttachment(userId); 
-            onlineUsers.put(userId, conn);
+            directory.add(userId, user);
+            if (!attachUser(conn, userId)) return;
             
             JSONObject loginData = new JSONObject();
             loginData.put("username", user);
             loginData.put("userId", userId);
             sendJsonMessage(conn, createJsonMessage("login_success", loginData));
             
-            // Tell *everyone* that this user is now online
-            broadcastUserListUpdate();
+            // Send them their list, then tell their online friends they are here
+            loadContactList(userId);
+            pushContactList(userId);
+            notifyPresence(userId, true);
             
         } else { // Login failed
             sendJsonError(conn, "Login failed. Invalid username or password.");
@@ -171,53 +443,383 @@ public class WebSocketChatServer extends WebSocketServer {
     
     private void handleGetMessageHistory(WebSocket conn, int senderId, JSONObject json) {
         String targetUsername = json.getString("withUser");
-        int targetId = dbManager.getUserId(targetUsername);
+        int targetId = directory.getUserId(targetUsername);
         
         if (targetId == -1) { sendJsonError(conn, "User not found."); return; }
         
-        List<Message> history = dbManager.getMessageHistory(senderId, targetId);
+        // Without a "limit" the client gets the whole conversation, as before.
+        // With one, it gets a page ending just before "beforeId" (or the newest page).
+        List<Message> history;
+        boolean hasMore = false;
+        if (json.has("limit")) {
+            int beforeId = json.optInt("beforeId", 0);
+            int limit = Math.max(1, Math.min(json.getInt("limit"), MAX_HISTORY_PAGE_SIZE));
+            // Ask for one extra message to find out whether there is another page
+            history = dbManager.getMessageHistoryPage(senderId, targetId, beforeId, limit + 1);
+            hasMore = history.size() > limit;
+            if (hasMore) history = history.subList(1, history.size()); // Oldest first, so drop the front
+        } else {
+            history = dbManager.getMessageHistory(senderId, targetId);
+        }
         
         JSONArray historyJson = new JSONArray();
         for (Message msg : history) {
             historyJson.put(createJsonMessageFromObject(msg));
         }
         
+        // Fetching the newest messages delivers whatever arrived while we were offline
+        boolean newestPage = json.optInt("beforeId", 0) == 0;
+        for (int i = history.size() - 1; newestPage && i >= 0; i--) {
+            if (history.get(i).sender.equals(targetUsername)) {
+                receipts.markDelivered(senderId, targetId, history.get(i).messageId);
+                break;
+            }
+        }
+        
+        // How far the other side has got with our messages
+        int[] peerState = dbManager.getReadState(targetId, senderId);
+        int[] peerPending = receipts.peek(targetId, senderId);
+        if (peerPending != null) {
+            peerState[0] = Math.max(peerState[0], peerPending[0]);
+            peerState[1] = Math.max(peerState[1], peerPending[1]);
+        }
+        
         JSONObject response = new JSONObject();
         response.put("type", "message_history");
         response.put("withUser", targetUsername);
         response.put("history", historyJson);
+        response.put("peerDeliveredUpTo", peerState[0]);
+        response.put("peerReadUpTo", peerState[1]);
+        if (hasMore) {
+            response.put("nextBeforeId", history.get(0).messageId);
+        }
         sendJsonMessage(conn, response.toString());
     }
 
+    /**
+     * The user's inbox: one entry per conversation, newest first, with the
+     * last message and the unread count. Served from memory after the first call.
+     */
+    private void handleGetConversations(WebSocket conn, int userId, JSONObject json) {
+        int limit = Math.max(1, Math.min(json.optInt("limit", 50), ConversationCache.MAX_LOADED));
+        
+        List<ConversationSummary> inbox = conversations.get(userId, limit);
+        if (inbox == null) {
+            int stamp = conversations.beginLoad(userId);
+            List<ConversationSummary> loaded = dbManager.getConversations(userId, ConversationCache.MAX_LOADED);
+            if (loaded == null) { sendUnavailable(conn, "get_conversations", "Your conversations can't be loaded right now."); return; }
+            conversations.put(userId, loaded, stamp);
+            inbox = loaded.size() > limit ? loaded.subList(0, limit) : loaded;
+        }
+        
+        JSONArray conversationsJson = new JSONArray();
+        for (ConversationSummary conversation : inbox) {
+            JSONObject conversationJson = new JSONObject();
+            conversationJson.put("withUser", conversation.peerUsername);
+            conversationJson.put("lastMessageId", conversation.lastMessageId);
+            conversationJson.put("lastSender", conversation.lastSender);
+            conversationJson.put("lastMessage", conversation.lastMessageText);
+            conversationJson.put("timestamp", new SimpleDateFormat("h:mm a").format(conversation.lastSentAt));
+            conversationJson.put("sentAt", conversation.lastSentAt.getTime());
+            conversationJson.put("unread", conversation.unreadCount);
+            conversationsJson.put(conversationJson);
+        }
+        
+        JSONObject response = new JSONObject();
+        response.put("type", "conversations");
+        response.put("conversations", conversationsJson);
+        sendJsonMessage(conn, response.toString());
+    }
+
+    /**
+     * Saves and delivers a private message. A client may add a "clientMessageId"
+     * (up to 64 chars, unique per sender); if it retries with the same id, it
+     * just gets the original message back, with no second insert or delivery.
+     */
     private void handlePrivateMessage(WebSocket conn, int senderId, JSONObject json) {
         String receiverUsername = json.getString("receiverUsername");
         String messageText = json.getString("message");
+        String clientMessageId = json.optString("clientMessageId", null);
         
-        int receiverId = dbManager.getUserId(receiverUsername);
+        if (clientMessageId != null) {
+            if (clientMessageId.isEmpty() || clientMessageId.length() > 64) { sendJsonError(conn, "Invalid clientMessageId."); return; }
+            
+            Message earlier = recentSends.get(senderId, clientMessageId);
+            if (earlier != null) {
+                // Through the shard, so it can't overtake the echo of the original send
+                sessions.sendTo(senderId, conn, createJsonMessage("private_message_incoming", createJsonMessageFromObject(earlier)));
+                return;
+            }
+        }
         
+        int receiverId = directory.getUserId(receiverUsername);
+        
+        if (receiverId == -1 && dbManager.isDegraded()) { sendUnavailable(conn, "private_message", "Messages can't be sent right now."); return; }
         if (receiverId == -1) { sendJsonError(conn, "Error: User '" + receiverUsername + "' does not exist."); return; }
         
-        Message savedMessage = dbManager.savePrivateMessage(senderId, receiverId, messageText);
+        if (dbManager.isDegraded()) {
+            relayPrivateMessage(conn, senderId, receiverId, messageText, clientMessageId);
+            return;
+        }
+        
+        Message savedMessage = dbManager.savePrivateMessage(senderId, receiverId, messageText, clientMessageId);
         
         if (savedMessage == null) { sendJsonError(conn, "Error: Could not save message."); return; }
         
-        String pmJsonString = createJsonMessage("private_message_incoming", createJsonMessageFromObject(savedMessage));
-
-        // Send to receiver (if online)
-        WebSocket receiverConn = onlineUsers.get(receiverId);
-        if (receiverConn != null) {
-            sendJsonMessage(receiverConn, pmJsonString);
+        if (clientMessageId != null) {
+            recentSends.put(senderId, clientMessageId, savedMessage);
+        }
+        if (savedMessage.duplicate) {
+            // Already delivered the first time; only the retrying client needs an answer
+            sessions.sendTo(senderId, conn, createJsonMessage("private_message_incoming", createJsonMessageFromObject(savedMessage)));
+            return;
         }
         
-        // Send copy back to sender
-        sendJsonMessage(conn, pmJsonString);
+        deliverPrivateMessage(senderId, receiverId, receiverUsername, savedMessage, createJsonMessageFromObject(savedMessage));
+        broadcastTyping(senderId, receiverId, false);
+    }
+    
+    /**
+     * Live-only mode: passes a message straight to the receiver's open
+     * sessions without saving it. It has no message id, won't show up in
+     * history, and gets no receipts; clients see "saved": false.
+     */
+    private void relayPrivateMessage(WebSocket conn, int senderId, int receiverId, String messageText, String clientMessageId) {
+        String senderUsername = directory.getUsername(senderId);
+        if (senderUsername == null || !sessions.isOnline(receiverId)) {
+            sendUnavailable(conn, "private_message", "Messages can't be saved right now, so they can only go to users who are online.");
+            return;
+        }
+        
+        Message relayed = new Message(-1, senderUsername, null, messageText, new Timestamp(System.currentTimeMillis()), clientMessageId, false);
+        JSONObject data = createJsonMessageFromObject(relayed);
+        data.put("saved", false);
+        String pmJsonString = createJsonMessage("private_message_incoming", data);
+        
+        ChatEvents.FanOut fanOut = ChatEvents.beginFanOut();
+        int recipients = sessions.send(receiverId, pmJsonString);
+        recipients += sessions.send(senderId, pmJsonString);
+        ChatEvents.commitFanOut(fanOut, "private_message_live", recipients, pmJsonString);
         
         broadcastTyping(senderId, receiverId, false);
     }
     
+    /**
+     * Sends a saved private message to every session of the receiver, and a
+     * copy to every session of the sender, and updates both inboxes.
+     * @param receiverUsername If known; otherwise the sender's cached inbox is reloaded later.
+     */
+    private void deliverPrivateMessage(int senderId, int receiverId, String receiverUsername, Message savedMessage, JSONObject data) {
+        conversations.onMessage(senderId, receiverId, receiverUsername, savedMessage, false);
+        if (receiverId != senderId) {
+            conversations.onMessage(receiverId, senderId, savedMessage.sender, savedMessage, true);
+        }
+        
+        String pmJsonString = createJsonMessage("private_message_incoming", data);
+
+        ChatEvents.FanOut fanOut = ChatEvents.beginFanOut();
+        
+        // Send to every session of the receiver (if online)
+        int recipients = sessions.send(receiverId, pmJsonString);
+        if (recipients > 0) {
+            receipts.markDelivered(receiverId, senderId, savedMessage.messageId);
+        }
+        
+        // Send copy back to the sender, on all of their devices
+        recipients += sessions.send(senderId, pmJsonString);
+        ChatEvents.commitFanOut(fanOut, "private_message", recipients, pmJsonString);
+    }
+    
+    // --- ATTACHMENTS ---
+    
+    /**
+     * Starts an upload ("toUser", "fileName", "size", "sha256"), or resumes one ("uploadId").
+     * The reply says which offset to send the next chunk from.
+     */
+    private void handleAttachmentBegin(WebSocket conn, int userId, JSONObject json) {
+        AttachmentStore.Upload upload;
+        if (json.has("uploadId")) {
+            upload = attachments.resume(json.getString("uploadId"), userId);
+            if (upload == null) { sendJsonError(conn, "Upload not found. Please start it again."); return; }
+        } else {
+            String receiverUsername = json.getString("toUser");
+            int receiverId = directory.getUserId(receiverUsername);
+            if (receiverId == -1) { sendJsonError(conn, "Error: User '" + receiverUsername + "' does not exist."); return; }
+            
+            try {
+                upload = attachments.begin(userId, receiverId, json.getString("fileName"), json.getLong("size"), json.getString("sha256"));
+            } catch (IllegalArgumentException e) {
+                sendJsonError(conn, e.getMessage());
+                return;
+            } catch (IOException e) {
+                log.error("Error starting upload: {}", e.getMessage());
+                sendJsonError(conn, "Could not start upload.");
+                return;
+            }
+        }
+        
+        JSONObject response = new JSONObject();
+        response.put("type", "attachment_upload_ready");
+        response.put("uploadId", upload.uploadIdHex());
+        response.put("offset", upload.getReceived());
+        response.put("chunkSize", AttachmentStore.CHUNK_SIZE);
+        sendJsonMessage(conn, response.toString());
+    }
+    
+    /**
+     * Runs on an attachment thread once the last chunk is in: checks the hash,
+     * stores the file, and sends it to the receiver as a private message.
+     */
+    private void finishUpload(AttachmentStore.Upload upload) {
+        int attachmentId;
+        try {
+            if (!attachments.verify(upload)) {
+                attachments.discard(upload);
+                sendJsonErrorToUser(upload.uploaderId, "Attachment '" + upload.fileName + "' was corrupted in transit. Please upload it again.");
+                return;
+            }
+            attachmentId = dbManager.saveAttachment(upload.uploaderId, upload.receiverId, upload.fileName, upload.size, upload.sha256);
+            if (attachmentId == -1) {
+                attachments.discard(upload);
+                sendJsonErrorToUser(upload.uploaderId, "Error: Could not save attachment.");
+                return;
+            }
+            attachments.store(upload, attachmentId);
+        } catch (IOException e) {
+            log.error("Error storing attachment: {}", e.getMessage());
+            attachments.discard(upload);
+            sendJsonErrorToUser(upload.uploaderId, "Error: Could not save attachment.");
+            return;
+        }
+        
+        // Shows up in history like any other message; the id is in the text for clients to pick out
+        String text = "[Attachment #" + attachmentId + ": " + upload.fileName + "]";
+        Message savedMessage = dbManager.savePrivateMessage(upload.uploaderId, upload.receiverId, text);
+        if (savedMessage == null) { sendJsonErrorToUser(upload.uploaderId, "Error: Could not save message."); return; }
+        
+        JSONObject attachmentJson = new JSONObject();
+        attachmentJson.put("attachmentId", attachmentId);
+        attachmentJson.put("fileName", upload.fileName);
+        attachmentJson.put("size", upload.size);
+        attachmentJson.put("sha256", upload.sha256);
+        
+        JSONObject data = createJsonMessageFromObject(savedMessage);
+        data.put("attachment", attachmentJson);
+        deliverPrivateMessage(upload.uploaderId, upload.receiverId, null, savedMessage, data);
+    }
+    
+    /**
+     * Streams an attachment ("attachmentId", optional "offset" to resume) to
+     * its uploader or receiver as binary frames.
+     */
+    private void handleAttachmentDownload(WebSocket conn, int userId, JSONObject json) {
+        DatabaseManager.Attachment attachment = dbManager.getAttachment(json.getInt("attachmentId"));
+        if (attachment == null || (attachment.uploaderId != userId && attachment.receiverId != userId)) {
+            sendJsonError(conn, "Attachment not found.");
+            return;
+        }
+        long offset = json.optLong("offset", 0);
+        if (offset < 0 || offset > attachment.size) { sendJsonError(conn, "Invalid offset."); return; }
+        
+        JSONObject response = new JSONObject();
+        response.put("type", "attachment_download_start");
+        response.put("attachmentId", attachment.attachmentId);
+        response.put("fileName", attachment.fileName);
+        response.put("size", attachment.size);
+        response.put("sha256", attachment.sha256);
+        response.put("offset", offset);
+        // Straight to the connection: the chunks that follow are written directly
+        // by AttachmentStore, and must not overtake this header in a shard's queue
+        conn.send(response.toString());
+        
+        try {
+            attachments.download(conn, attachment.attachmentId, attachment.size, offset);
+        } catch (IOException e) {
+            log.error("Error opening attachment {}: {}", attachment.attachmentId, e.getMessage());
+            sendJsonError(conn, "Could not read attachment.");
+        }
+    }
+    
+    /**
+     * Full-text search over the caller's own conversations, newest first.
+     * Pass the returned "nextBeforeId" as "beforeId" to get the next page.
+     */
+    private void handleMessageSearch(WebSocket conn, int userId, JSONObject json) {
+        String query = json.getString("query").trim();
+        if (query.isEmpty()) { sendJsonError(conn, "Search query cannot be empty."); return; }
+        
+        int beforeId = json.optInt("beforeId", 0);
+        int limit = Math.max(1, Math.min(json.optInt("limit", 20), MAX_SEARCH_PAGE_SIZE));
+        
+        // Ask for one extra row to find out whether there is another page
+        List<Message> hits = dbManager.searchMessages(userId, query, beforeId, limit + 1);
+        boolean hasMore = hits.size() > limit;
+        if (hasMore) hits = hits.subList(0, limit);
+        
+        JSONArray results = new JSONArray();
+        for (Message msg : hits) {
+            JSONObject hit = createJsonMessageFromObject(msg);
+            hit.put("receiver", msg.receiver);
+            results.put(hit);
+        }
+        
+        JSONObject response = new JSONObject();
+        response.put("type", "message_search_results");
+        response.put("query", query);
+        response.put("results", results);
+        if (hasMore) {
+            response.put("nextBeforeId", hits.get(hits.size() - 1).messageId);
+        }
+        sendJsonMessage(conn, response.toString());
+    }
+    
+    /**
+     * The client has shown the user everything from "withUser" up to "messageId".
+     * Only the high-water mark is kept; the sender hears about it on the next flush.
+     */
+    private void handleMarkRead(WebSocket conn, int userId, JSONObject json) {
+        String peerUsername = json.getString("withUser");
+        int peerId = directory.getUserId(peerUsername);
+        if (peerId == -1) { sendJsonError(conn, "User not found."); return; }
+        if (peerId == userId) { sendJsonError(conn, "Can't mark your own messages as read."); return; }
+        
+        // Past the newest message is capped when the marks are saved
+        int messageId = json.getInt("messageId");
+        if (messageId <= 0) { sendJsonError(conn, "Invalid messageId."); return; }
+        
+        receipts.markRead(userId, peerId, messageId);
+    }
+    
+    /**
+     * Tells senders how far their conversations have been delivered and read,
+     * one "receipts" frame per online sender per flush. Also brings the
+     * readers' cached unread counts up to date.
+     */
+    private void pushReceipts(List<Receipt> saved) {
+        Map<Integer, JSONArray> bySender = new HashMap<>();
+        for (Receipt receipt : saved) {
+            conversations.onUnreadCount(receipt.userId, receipt.peerId, receipt.unreadCount);
+            
+            if (!sessions.isOnline(receipt.peerId)) continue;
+            
+            JSONObject receiptJson = new JSONObject();
+            receiptJson.put("user", receipt.username);
+            receiptJson.put("deliveredUpTo", receipt.deliveredUpTo);
+            receiptJson.put("readUpTo", receipt.readUpTo);
+            bySender.computeIfAbsent(receipt.peerId, id -> new JSONArray()).put(receiptJson);
+        }
+        
+        for (Map.Entry<Integer, JSONArray> entry : bySender.entrySet()) {
+            JSONObject response = new JSONObject();
+            response.put("type", "receipts");
+            response.put("receipts", entry.getValue());
+            sessions.send(entry.getKey(), response.toString());
+        }
+    }
+    
     private void handleTyping(int senderId, JSONObject json, boolean isTyping) {
         String receiverUsername = json.getString("toUser");
-        int receiverId = dbManager.getUserId(receiverUsername);
+        int receiverId = directory.getUserId(receiverUsername);
         
         if (receiverId != -1) {
             broadcastTyping(senderId, receiverId, isTyping);
@@ -239,7 +841,7 @@ public class WebSocketChatServer extends WebSocketServer {
             // Include user if name matches, they aren't our friend, and they aren't us
             if (user.toLowerCase().contains(query) && 
                 !friends.contains(user) && 
-                dbManager.getUserId(user) != currentUserId) {
+                directory.getUserId(user) != currentUserId) {
                 searchResults.put(user);
             }
         }
@@ -260,11 +862,12 @@ public class WebSocketChatServer extends WebSocketServer {
         // Send a status update back to the sender
         if (statusMessage.equals("Friend request sent.")) {
             // If success, also notify the receiver (if they are online)
-            int receiverId = dbManager.getUserId(receiverUsername);
-            WebSocket receiverConn = onlineUsers.get(receiverId);
-            if (receiverConn != null) {
+            int receiverId = directory.getUserId(receiverUsername);
+            friendGraph.invalidate(receiverId); // Their pending list changed
+            if (sessions.isOnline(receiverId)) {
                 // Send them their new pending request list
-                handleGetContactList(receiverConn, receiverId); 
+                loadContactList(receiverId);
+                pushContactList(receiverId); 
             }
             sendJsonMessage(conn, createJsonMessage("request_sent", statusMessage));
         } else {
@@ -280,7 +883,7 @@ public class WebSocketChatServer extends WebSocketServer {
         String senderUsername = json.getString("username");
         boolean didAccept = json.getBoolean("accept");
         
-        int senderId = dbManager.getUserId(senderUsername);
+        int senderId = directory.getUserId(senderUsername);
         if (senderId == -1) {
             sendJsonError(conn, "User not found.");
             return;
@@ -290,13 +893,17 @@ public class WebSocketChatServer extends WebSocketServer {
         boolean success = dbManager.actionFriendRequest(currentUserId, senderId, status);
         
         if (success) {
+            friendGraph.invalidate(currentUserId);
+            friendGraph.invalidate(senderId);
+            
             // Refresh this user's contact list
-            handleGetContactList(conn, currentUserId);
+            loadContactList(currentUserId);
+            pushContactList(currentUserId);
             
             // Also refresh the *other* user's contact list (if they are online)
-            WebSocket senderConn = onlineUsers.get(senderId);
-            if (senderConn != null) {
-                handleGetContactList(senderConn, senderId);
+            if (sessions.isOnline(senderId)) {
+                loadContactList(senderId);
+                pushContactList(senderId);
             }
         } else {
             sendJsonError(conn, "Failed to action friend request.");
@@ -304,61 +911,221 @@ public class WebSocketChatServer extends WebSocketServer {
     }
     
     
+    // --- ROOM HANDLERS ---
+    
+    /**
+     * Puts a freshly logged-in user into all of their rooms.
+     * This is the only room membership query a session costs us.
+     */
+    private void loadRooms(int userId) {
+        for (Map.Entry<Integer, String> room : dbManager.getRoomsForUser(userId).entrySet()) {
+            rooms.addMember(room.getKey(), room.getValue(), userId);
+        }
+    }
+    
+    private void handleCreateRoom(WebSocket conn, int userId, JSONObject json) {
+        String roomName = json.getString("room").trim();
+        if (roomName.isEmpty()) { sendJsonError(conn, "Room name cannot be empty."); return; }
+        if (roomName.length() > MAX_ROOM_NAME_LENGTH) { sendJsonError(conn, "Room name is too long (at most " + MAX_ROOM_NAME_LENGTH + " characters)."); return; }
+        if (!ROOM_NAME.matcher(roomName).matches()) { sendJsonError(conn, "Room names may only contain letters, digits, spaces, '.', '_' and '-'."); return; }
+        
+        int roomId = dbManager.createRoom(userId, roomName);
+        if (roomId == DatabaseManager.ROOM_NAME_TAKEN) { sendJsonError(conn, "Room '" + roomName + "' already exists."); return; }
+        if (roomId == -1) { sendJsonError(conn, "Error: Could not create room."); return; }
+        
+        rooms.addMember(roomId, roomName, userId);
+        sessions.send(userId, createJsonMessage("room_joined", roomName)); // Every device shows the room
+    }
+    
+    private void handleJoinRoom(WebSocket conn, int userId, JSONObject json) {
+        String roomName = json.getString("room");
+        int roomId = dbManager.getRoomId(roomName);
+        if (roomId == -1) { sendJsonError(conn, "Room '" + roomName + "' does not exist."); return; }
+        
+        if (!dbManager.joinRoom(roomId, userId)) { sendJsonError(conn, "Failed to join room."); return; }
+        
+        rooms.addMember(roomId, roomName, userId);
+        sessions.send(userId, createJsonMessage("room_joined", roomName));
+    }
+    
+    private void handleLeaveRoom(WebSocket conn, int userId, JSONObject json) {
+        String roomName = json.getString("room");
+        int roomId = rooms.getRoomId(roomName);
+        if (roomId == -1 || !rooms.isOnlineMember(roomId, userId)) { sendJsonError(conn, "You are not in room '" + roomName + "'."); return; }
+        
+        dbManager.leaveRoom(roomId, userId);
+        rooms.removeMember(roomId, userId);
+        sessions.send(userId, createJsonMessage("room_left", roomName)); // Left on every device
+    }
+    
+    /**
+     * Saves a room message and fans it out to every online member.
+     * Membership comes from memory, and the frame is built once for everyone
+     * and goes to each member's sessions.
+     */
+    private void handleRoomMessage(WebSocket conn, int senderId, JSONObject json) {
+        String roomName = json.getString("room");
+        String messageText = json.getString("message");
+        
+        int roomId = rooms.getRoomId(roomName);
+        if (roomId == -1 || !rooms.isOnlineMember(roomId, senderId)) { sendJsonError(conn, "You are not in room '" + roomName + "'."); return; }
+        
+        JSONObject data;
+        if (dbManager.isDegraded()) {
+            // Live-only mode: members who are here get it, but it isn't saved
+            String senderUsername = directory.getUsername(senderId);
+            if (senderUsername == null) { sendUnavailable(conn, "room_message", "Messages can't be sent right now."); return; }
+            data = createJsonMessageFromObject(new Message(-1, senderUsername, messageText, new Timestamp(System.currentTimeMillis())));
+            data.put("saved", false);
+        } else {
+            Message savedMessage = dbManager.saveRoomMessage(roomId, senderId, messageText);
+            if (savedMessage == null) { sendJsonError(conn, "Error: Could not save message."); return; }
+            data = createJsonMessageFromObject(savedMessage);
+        }
+        data.put("room", roomName);
+        
+        // Includes the sender, whose sessions get it as their copy
+        String frame = createJsonMessage("room_message_incoming", data);
+        ChatEvents.FanOut fanOut = ChatEvents.beginFanOut();
+        int recipients = 0;
+        for (int memberId : rooms.getOnlineMembers(roomId)) {
+            recipients += sessions.send(memberId, frame);
+        }
+        ChatEvents.commitFanOut(fanOut, "room_message", recipients, frame);
+    }
+    
+    private void handleGetRooms(WebSocket conn, int userId) {
+        JSONArray roomsArray = new JSONArray();
+        for (int roomId : rooms.getRooms(userId)) {
+            roomsArray.put(rooms.getRoomName(roomId));
+        }
+        
+        JSONObject response = new JSONObject();
+        response.put("type", "room_list");
+        response.put("rooms", roomsArray);
+        sendJsonMessage(conn, response.toString());
+    }
+        
     // --- Broadcasting and List Methods (UPDATED) ---
 
     /**
-     * Sends the user's main "Contact List" (Friends + Pending)
+     * Sends the user's main "Contact List" (Friends + Pending).
+     * A client that sends the "version" it already holds gets back
+     * "contact_list_not_modified" or a "contact_list_diff" instead of the full list.
      */
-    private void handleGetContactList(WebSocket conn, int userId) {
-        List<String> friends = dbManager.getFriendList(userId);
-        List<String> pending = dbManager.getPendingRequests(userId);
+    private void handleGetContactList(WebSocket conn, int userId, JSONObject json) {
+        ConnectionState state = conn.getAttachment();
         
-        JSONObject contactListJson = new JSONObject();
-        JSONArray friendsArray = new JSONArray();
-        JSONArray pendingArray = new JSONArray();
+        ContactListCache.Snapshot snapshot = contactLists.get(userId);
+        if (snapshot == null) {
+            snapshot = loadContactList(userId);
+        }
+        if (snapshot == null) {
+            sendUnavailable(conn, "get_contact_list", "Your contact list can't be loaded right now.");
+            return;
+        }
         
-        // Build friends list
-        for (String username : friends) {
-            JSONObject userObj = new JSONObject();
-            userObj.put("username", username);
-            int uid = dbManager.getUserId(username);
-            userObj.put("online", onlineUsers.containsKey(uid));
-            friendsArray.put(userObj);
+        JSONObject response = null;
+        if (json.has("version")) {
+            state.versionedContacts = true;
+            response = contactLists.responseFor(userId, json.getLong("version"));
+        }
+        if (response == null) {
+            response = ContactListCache.toJson(snapshot);
         }
         
-        // Build pending list
-        for (String username : pending) {
-            pendingArray.put(username);
+        state.contactListVersion = response.getLong("version");
+        sendJsonMessage(conn, response.toString());
+    }
+    
+    /**
+     * Reloads a user's friends and pending requests, from the warm friend
+     * graph if it still knows them and from the database otherwise.
+     * The version only moves if something actually changed.
+     * @return The user's list, or null if it can't be loaded (database down).
+     */
+    private ContactListCache.Snapshot loadContactList(int userId) {
+        Map<Integer, String> friends;
+        List<String> pending;
+        FriendGraph.Links links = friendGraph.get(userId);
+        if (links != null) {
+            friends = namesOf(links.friendIds);
+            pending = new ArrayList<>(namesOf(links.pendingFromIds).values());
+        } else if (dbManager.isDegraded()) {
+            // Keep whatever we have rather than replace it with an empty list
+            return contactLists.get(userId);
+        } else {
+            friends = dbManager.getFriends(userId);
+            pending = friends != null ? dbManager.getPendingRequests(userId) : null;
+            // Same if a query failed (e.g. the bulkhead was full)
+            if (pending == null) return contactLists.get(userId);
+        }
+        return contactLists.update(userId, friends, pending, sessions::isOnline);
+    }
+    
+    /**
+     * @return user_id -> username, ordered by username like the database queries.
+     */
+    private Map<Integer, String> namesOf(int[] userIds) {
+        List<Map.Entry<Integer, String>> named = new ArrayList<>(userIds.length);
+        for (int userId : userIds) {
+            String username = directory.getUsername(userId);
+            if (username != null) named.add(Map.entry(userId, username));
         }
+        named.sort(Map.Entry.comparingByValue());
         
-        contactListJson.put("type", "contact_list");
-        contactListJson.put("friends", friendsArray);
-        contactListJson.put("pending", pendingArray);
+        Map<Integer, String> names = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> entry : named) {
+            names.put(entry.getKey(), entry.getValue());
+        }
+        return names;
+    }
+    
+    /**
+     * Brings every session of an online user up to date with their cached contact list.
+     * Each session remembers its own version, so a freshly opened one gets the
+     * list while the others only hear about what changed.
+     */
+    private void pushContactList(int userId) {
+        for (WebSocket conn : sessions.get(userId)) {
+            pushContactList(conn, userId);
+        }
+    }
+    
+    /**
+     * Clients that track versions get a diff; older clients get the full list.
+     */
+    private void pushContactList(WebSocket conn, int userId) {
+        ConnectionState state = conn.getAttachment();
         
-        conn.send(contactListJson.toString());
+        JSONObject update;
+        if (state.versionedContacts) {
+            update = contactLists.responseFor(userId, state.contactListVersion);
+            if (update == null || update.getString("type").equals("contact_list_not_modified")) return;
+        } else {
+            ContactListCache.Snapshot snapshot = contactLists.get(userId);
+            if (snapshot == null || snapshot.version == state.contactListVersion) return;
+            update = ContactListCache.toJson(snapshot);
+        }
+        
+        state.contactListVersion = update.getLong("version");
+        sendJsonMessage(conn, update.toString());
     }
     
     /**
-     * Sends the updated friend/online list to ALL online users.
-     * This is called when anyone logs in or out.
+     * Tells the online friends of a user that they came online or went offline.
+     * Only friends who have the user in their list are touched; no database calls.
      */
-    private void broadcastUserListUpdate() {
-        // This is a bit inefficient, but simple.
-        // A better way would be to send a small "user_online" or "user_offline" message.
-        // For now, we just refresh everyone's full contact list.
-        for (WebSocket conn : onlineUsers.values()) {
-            if(conn.getAttachment() != null) {
-                int userId = conn.getAttachment();
-                handleGetContactList(conn, userId);
+    private void notifyPresence(int userId, boolean online) {
+        for (int watcherId : contactLists.getWatchers(userId)) {
+            if (contactLists.updatePresence(watcherId, userId, online) != null) {
+                pushContactList(watcherId);
             }
         }
     }
     
     private void broadcastTyping(int senderId, int receiverId, boolean isTyping) {
-        String senderUsername = dbManager.getAllUsernames().stream()
-                                  .filter(u -> dbManager.getUserId(u) == senderId)
-                                  .findFirst().orElse(null);
-                                  
+        String senderUsername = directory.getUsername(senderId);
         if (senderUsername == null) return; 
 
         JSONObject typingJson = new JSONObject();
@@ -367,44 +1134,107 @@ public class WebSocketChatServer extends WebSocketServer {
         
         String jsonString = typingJson.toString();
 
+        ChatEvents.FanOut fanOut = ChatEvents.beginFanOut();
+        int recipients;
         if (receiverId == -1) {
-            for (WebSocket conn : onlineUsers.values()) {
-                conn.send(jsonString);
-            }
+            recipients = sessions.sendToAll(jsonString);
         } else {
-            WebSocket receiverConn = onlineUsers.get(receiverId);
-            if (receiverConn != null) {
-                sendJsonMessage(receiverConn, jsonString);
-            }
+            recipients = sessions.send(receiverId, jsonString);
         }
+        ChatEvents.commitFanOut(fanOut, "typing", recipients, jsonString);
     }
     
     
     @Override
     public void onError(WebSocket conn, Exception ex) {
-        System.err.println("An error occurred for connection " + (conn != null ? conn.getRemoteSocketAddress() : "UNKNOWN") + ": " + ex.getMessage());
-        ex.printStackTrace();
+        log.warn("An error occurred for connection {}: {}", (conn != null ? conn.getRemoteSocketAddress() : "UNKNOWN"), ex.toString());
+        // The full trace is only worth its cost when someone is debugging
+        log.debug("Stack trace for connection error", ex);
     }
 
     @Override
     public void onStart() {
-        System.out.println("✅ WebSocket Server started successfully.");
-        System.out.println("Listening on port " + getPort());
+        log.info("✅ WebSocket Server started successfully.");
+        log.info("Listening on port {}", getPort());
         setConnectionLostTimeout(0);
+        
+        // Drop the budgets of users who have gone quiet
+        ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limiter-eviction");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeping.scheduleWithFixedDelay(rateLimiter::evictIdle, 1, 1, TimeUnit.MINUTES);
+        
+        receipts.start();
+        
+        if (health != null) {
+            health.markAccepting();
+        }
+    }
+    
+    /**
+     * Fills the user directory, friend graph and recently active inboxes in
+     * parallel, reporting progress on the health endpoint. Runs before the
+     * server starts listening, so reconnecting clients find everything warm.
+     */
+    private void warmUp() {
+        WarmUp warmUp = new WarmUp();
+        warmUp.add("users", directory::load);
+        warmUp.add("friendships", friendGraph::load);
+        warmUp.add("conversations", this::loadRecentConversations);
+        
+        health = new HealthServer(warmUp, dbManager::isDegraded);
+        try {
+            health.start();
+        } catch (IOException e) {
+            log.warn("Could not start health endpoint: {}", e.getMessage());
+        }
+        
+        warmUp.run(WARM_UP_TIMEOUT_MS);
+    }
+    
+    /**
+     * @return How many inboxes were loaded, or -1 on error.
+     */
+    private int loadRecentConversations() {
+        Map<Integer, List<ConversationSummary>> inboxes =
+                dbManager.getRecentConversations(WARM_CONVERSATION_USERS, ConversationCache.MAX_LOADED);
+        if (inboxes == null) return -1;
+        for (Map.Entry<Integer, List<ConversationSummary>> inbox : inboxes.entrySet()) {
+            conversations.put(inbox.getKey(), inbox.getValue());
+        }
+        return inboxes.size();
     }
     
     
     // --- JSON Helper Methods ---
     
+    /**
+     * Replies on one connection. Once it's logged in, the reply goes through
+     * the user's delivery shard like everything else sent to them, so it
+     * stays in order with the messages, receipts and room frames queued there.
+     */
     private void sendJsonMessage(WebSocket conn, String jsonString) {
-        conn.send(jsonString);
+        ConnectionState state = conn.getAttachment();
+        if (state != null && state.isLoggedIn()) {
+            sessions.sendTo(state.getUserId(), conn, jsonString);
+        } else {
+            conn.send(jsonString);
+        }
     }
     
     private void sendJsonError(WebSocket conn, String errorMessage) {
         JSONObject errorJson = new JSONObject();
         errorJson.put("type", "error");
         errorJson.put("message", errorMessage);
-        conn.send(errorJson.toString());
+        sendJsonMessage(conn, errorJson.toString());
+    }
+    
+    private void sendJsonErrorToUser(int userId, String errorMessage) {
+        for (WebSocket conn : sessions.get(userId)) {
+            sendJsonError(conn, errorMessage);
+        }
     }
     
     private String createJsonMessage(String type, String message) {
@@ -423,6 +1253,10 @@ public class WebSocketChatServer extends WebSocketServer {
     
     private JSONObject createJsonMessageFromObject(Message msg) {
         JSONObject msgJson = new JSONObject();
+        msgJson.put("messageId", msg.messageId);
+        if (msg.clientMessageId != null) {
+            msgJson.put("clientMessageId", msg.clientMessageId);
+        }
         msgJson.put("sender", msg.sender);
         msgJson.put("message", msg.text);
         
@@ -438,10 +1272,25 @@ public class WebSocketChatServer extends WebSocketServer {
      */
     public static void main(String[] args) {
         dbManager = new DatabaseManager();
-        dbManager.initializeDatabase(); 
+        if (!dbManager.initializeDatabase()) {
+            log.error("Database schema is not up to date, not starting.");
+            return;
+        }
+        
+        try {
+            attachments = new AttachmentStore();
+        } catch (IOException e) {
+            log.error("Could not open attachment storage: {}", e.getMessage());
+            return;
+        }
+        
+        // Moves old messages into compressed archive segments in the background
+        new MessageArchiver(dbManager).start();
         
         int port = 8080; 
         WebSocketChatServer server = new WebSocketChatServer(port);
+        // Only take connections once the caches are warm
+        server.warmUp();
         server.start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.chatapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.chatapp.DatabaseManager.Receipt;
+
+/**
+ * ReceiptCoalescer against a stand-in for the database: what gets queued,
+ * and what is retried after a flush.
+ */
+class ReceiptCoalescerTest {
+
+    /** Records every batch; saves it, fails, or finds nothing to update. */
+    private static final class FakeDatabase extends DatabaseManager {
+        final List<List<int[]>> batches = new ArrayList<>();
+        boolean fail;
+        boolean nothingToUpdate;
+
+        @Override
+        public List<Receipt> saveReceipts(List<int[]> receipts) {
+            batches.add(new ArrayList<>(receipts));
+            if (fail) return null;
+            List<Receipt> saved = new ArrayList<>();
+            if (nothingToUpdate) return saved;
+            for (int[] r : receipts) {
+                saved.add(new Receipt(r[0], "user" + r[0], r[1], Math.max(r[2], r[3]), r[3], 0));
+            }
+            return saved;
+        }
+    }
+
+    private final FakeDatabase db = new FakeDatabase();
+    private final List<Receipt> flushed = new ArrayList<>();
+    private final ReceiptCoalescer receipts = new ReceiptCoalescer(db, flushed::addAll);
+
+    @Test
+    void selfReceiptsAreNeverQueued() {
+        receipts.markDelivered(7, 7, 100); // A note to self delivered while online
+        receipts.markRead(7, 7, 100);
+
+        assertNull(receipts.peek(7, 7));
+        receipts.flush();
+        assertEquals(0, db.batches.size());
+    }
+
+    @Test
+    void selfReceiptsDontHoldBackOthers() {
+        receipts.markRead(7, 7, 100);
+        receipts.markRead(7, 8, 50);
+
+        receipts.flush();
+        assertEquals(1, db.batches.size());
+        assertEquals(1, db.batches.get(0).size());
+        assertArrayEquals(new int[] { 7, 8, 50, 50 }, db.batches.get(0).get(0));
+        assertEquals(1, flushed.size());
+    }
+
+    @Test
+    void marksCollapseIntoOneRow() {
+        receipts.markDelivered(1, 2, 10);
+        receipts.markDelivered(1, 2, 12);
+        receipts.markRead(1, 2, 11);
+
+        assertArrayEquals(new int[] { 12, 11 }, receipts.peek(1, 2));
+        receipts.flush();
+        assertArrayEquals(new int[] { 1, 2, 12, 11 }, db.batches.get(0).get(0));
+    }
+
+    @Test
+    void failedWritesAreRetried() {
+        receipts.markRead(1, 2, 10);
+        db.fail = true;
+        receipts.flush();
+
+        assertArrayEquals(new int[] { 10, 10 }, receipts.peek(1, 2));
+        assertEquals(0, flushed.size());
+
+        db.fail = false;
+        receipts.flush();
+        assertNull(receipts.peek(1, 2));
+        assertEquals(1, flushed.size());
+    }
+
+    @Test
+    void nothingToUpdateIsNotAFailure() {
+        db.nothingToUpdate = true; // e.g. every row was filtered out by the statement
+        receipts.markRead(1, 2, 10);
+
+        receipts.flush();
+        assertNull(receipts.peek(1, 2));
+        receipts.flush();
+        assertEquals(1, db.batches.size());
+        assertEquals(0, flushed.size());
+    }
+}
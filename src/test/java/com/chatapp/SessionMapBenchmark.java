@@ -0,0 +1,141 @@
+package com.chatapp;
+
+import java.lang.ref.Reference;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.java_websocket.WebSocket;
+
+/**
+ * Compares the old ConcurrentHashMap<Integer, ...> session map against
+ * ConcurrentIntMap and OnlineBitSet: heap used, lookup cost and presence
+ * check cost, with a realistic number of online users.
+ *
+ * Not a unit test; run it by hand after `mvn test-compile`:
+ *   java -cp target/classes:target/test-classes:$(deps) com.chatapp.SessionMapBenchmark [onlineUsers] [userIdSpace]
+ *
+ * Rough numbers only (no JMH), but each case is warmed up and repeated.
+ */
+public class SessionMapBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int LOOKUPS = 20_000_000;
+
+    public static void main(String[] args) {
+        int online = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int idSpace = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        Random random = new Random(42);
+        int[] onlineIds = new int[online];
+        for (int i = 0; i < online; i++) {
+            onlineIds[i] = 1 + random.nextInt(idSpace);
+        }
+        // Half the lookups hit online users, half are friends who may well be offline
+        int[] probes = new int[1 << 20];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = (i & 1) == 0 ? onlineIds[random.nextInt(online)] : 1 + random.nextInt(idSpace);
+        }
+
+        System.out.printf("%,d online users, ids up to %,d%n%n", online, idSpace);
+
+        // --- Heap ---
+        long before = usedHeap();
+        Map<Integer, WebSocket[]> boxed = new ConcurrentHashMap<>();
+        for (int id : onlineIds) boxed.put(id, new WebSocket[1]);
+        long boxedBytes = usedHeap() - before;
+
+        before = usedHeap();
+        ConcurrentIntMap<WebSocket[]> primitive = new ConcurrentIntMap<>();
+        for (int id : onlineIds) primitive.put(id, new WebSocket[1]);
+        long primitiveBytes = usedHeap() - before;
+
+        before = usedHeap();
+        OnlineBitSet bits = new OnlineBitSet();
+        for (int id : onlineIds) bits.set(id, true);
+        long bitsBytes = usedHeap() - before;
+        Reference.reachabilityFence(onlineIds); // Otherwise it can be collected mid-measurement
+
+        // Values are the same size in both maps; subtract them to compare the structures
+        long valueBytes = usedHeapOf(online);
+        System.out.printf("Heap, map structure only (values excluded, ~%,d KB):%n", valueBytes / 1024);
+        System.out.printf("  ConcurrentHashMap<Integer, WebSocket[]>  %,10d KB%n", (boxedBytes - valueBytes) / 1024);
+        System.out.printf("  ConcurrentIntMap<WebSocket[]>            %,10d KB%n", (primitiveBytes - valueBytes) / 1024);
+        System.out.printf("  OnlineBitSet                             %,10d KB%n%n", bitsBytes / 1024);
+
+        // --- Lookups ---
+        System.out.println("Session lookup (get), ns/op:");
+        report("  ConcurrentHashMap", () -> {
+            long found = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (boxed.get(probes[i & (probes.length - 1)]) != null) found++;
+            }
+            return found;
+        });
+        report("  ConcurrentIntMap ", () -> {
+            long found = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (primitive.get(probes[i & (probes.length - 1)]) != null) found++;
+            }
+            return found;
+        });
+
+        System.out.println("Presence check, ns/op:");
+        report("  ConcurrentHashMap.containsKey", () -> {
+            long found = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (boxed.containsKey(probes[i & (probes.length - 1)])) found++;
+            }
+            return found;
+        });
+        report("  OnlineBitSet.get             ", () -> {
+            long found = 0;
+            for (int i = 0; i < LOOKUPS; i++) {
+                if (bits.get(probes[i & (probes.length - 1)])) found++;
+            }
+            return found;
+        });
+    }
+
+    private interface Case {
+        long run();
+    }
+
+    private static void report(String name, Case benchmarkCase) {
+        long sink = benchmarkCase.run(); // Warm-up
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            sink += benchmarkCase.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%s %6.2f   (checksum %d)%n", name, (double) best / LOOKUPS, sink & 0xFF);
+    }
+
+    private static long usedHeapOf(int arrays) {
+        long before = usedHeap();
+        WebSocket[][] values = new WebSocket[arrays][];
+        for (int i = 0; i < arrays; i++) values[i] = new WebSocket[1];
+        long bytes = usedHeap() - before - (16L + 4L * arrays); // Minus the holder array itself
+        if (values.length != arrays) throw new IllegalStateException(); // Keep 'values' reachable
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Keep collecting until the number settles
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now == used) break;
+            used = now;
+        }
+        return used;
+    }
+}
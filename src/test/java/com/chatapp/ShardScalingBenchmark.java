@@ -0,0 +1,163 @@
+package com.chatapp;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * Delivery throughput against the number of DeliveryShards, for private
+ * messages (one frame to one user) and broadcasts (one frame to everyone).
+ *
+ * The connections are stand-ins whose send() does what Java-WebSocket does
+ * on the sending thread: build the frames and encode them. Nothing goes
+ * over a socket, so this measures the delivery path only.
+ *
+ * Not a unit test; run it by hand after `mvn test-compile`, on a machine
+ * with several cores (shard counts past the core count just share them):
+ *   java -cp target/classes:target/test-classes:$(deps) com.chatapp.ShardScalingBenchmark [onlineUsers] [messages] [senders]
+ *
+ * Rough numbers only (no JMH), but each case is warmed up and repeated.
+ */
+public class ShardScalingBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private static final String FRAME =
+            "{\"type\":\"private_message_incoming\",\"data\":{\"messageId\":123456,\"sender\":\"someone\","
+          + "\"message\":\"Hey, are we still on for tonight? Let me know when you are free.\",\"timestamp\":\"7:42 PM\"}}";
+
+    // Frames "written", across all connections
+    private static final LongAdder delivered = new LongAdder();
+
+    private static final ThreadLocal<Draft_6455> drafts = ThreadLocal.withInitial(Draft_6455::new);
+
+    private static ExecutorService senderPool;
+
+    public static void main(String[] args) throws InterruptedException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        // Stands in for the Java-WebSocket worker threads that handle requests
+        int senders = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, cores / 2);
+
+        System.out.printf("%d cores, %,d online users, %d sending threads%n%n", cores, users, senders);
+        senderPool = Executors.newFixedThreadPool(senders, r -> {
+            Thread t = new Thread(r, "sender");
+            t.setDaemon(true);
+            return t;
+        });
+
+        drafts.get(); // Sets up logging before several threads race to do it
+        WebSocket conn = stubConnection();
+        Random random = new Random(42);
+        int[] targets = new int[1 << 20];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = 1 + random.nextInt(users);
+        }
+
+        // --- Private messages ---
+        System.out.println("Private messages, frames/s:");
+        SessionRegistry unsharded = new SessionRegistry();
+        for (int userId = 1; userId <= users; userId++) unsharded.add(userId, conn);
+        report("  unsharded (sent on the handling thread)", messages, () ->
+                runSenders(senders, messages, (sender, i) -> unsharded.send(targets[(sender * 7919 + i) & (targets.length - 1)], FRAME)));
+
+        for (int shardCount = 1; shardCount <= Math.max(cores, 1); shardCount *= 2) {
+            DeliveryShards shards = populated(shardCount, users, conn);
+            report(String.format("  %2d shard(s)                            ", shardCount), messages, () ->
+                    runSenders(senders, messages, (sender, i) -> shards.send(targets[(sender * 7919 + i) & (targets.length - 1)], FRAME)));
+        }
+
+        // --- Broadcasts ---
+        int broadcasts = Math.max(1, messages / users);
+        System.out.printf("%nBroadcasts (%d x %,d users), frames/s:%n", broadcasts, users);
+        report("  unsharded (sent on the handling thread)", (long) broadcasts * users, () ->
+                runSenders(1, broadcasts, (sender, i) -> unsharded.sendToAll(FRAME)));
+
+        for (int shardCount = 1; shardCount <= Math.max(cores, 1); shardCount *= 2) {
+            DeliveryShards shards = populated(shardCount, users, conn);
+            report(String.format("  %2d shard(s)                            ", shardCount), (long) broadcasts * users, () ->
+                    runSenders(1, broadcasts, (sender, i) -> shards.sendToAll(FRAME)));
+        }
+    }
+
+    private interface Send {
+        void send(int sender, int i);
+    }
+
+    private interface Case {
+        void run() throws InterruptedException;
+    }
+
+    private static DeliveryShards populated(int shardCount, int users, WebSocket conn) {
+        DeliveryShards shards = new DeliveryShards(shardCount);
+        for (int userId = 1; userId <= users; userId++) shards.add(userId, conn);
+        return shards;
+    }
+
+    /**
+     * Splits 'total' sends over 'senders' threads and waits for them.
+     * The threads are reused, like request-handling threads would be, so
+     * each only ever sets up one ring per shard.
+     */
+    private static void runSenders(int senders, int total, Send send) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(senders);
+        for (int s = 0; s < senders; s++) {
+            int sender = s;
+            int count = total / senders + (sender < total % senders ? 1 : 0);
+            senderPool.execute(() -> {
+                for (int i = 0; i < count; i++) send.send(sender, i);
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+
+    /**
+     * Runs a case until 'frames' more frames have been delivered (not just queued).
+     */
+    private static void report(String name, long frames, Case benchmarkCase) throws InterruptedException {
+        double best = 0;
+        for (int round = 0; round <= ROUNDS; round++) { // Round 0 is the warm-up
+            long target = delivered.sum() + frames;
+            long start = System.nanoTime();
+            benchmarkCase.run();
+            while (delivered.sum() < target) {
+                Thread.yield(); // Don't take a core away from the shards
+            }
+            double perSecond = frames / ((System.nanoTime() - start) / 1e9);
+            if (round > 0) best = Math.max(best, perSecond);
+        }
+        System.out.printf("%s %,14.0f%n", name, best);
+    }
+
+    /**
+     * A connection that frames and encodes what it's sent, then drops it.
+     */
+    private static WebSocket stubConnection() {
+        return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[] { WebSocket.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("send") && args[0] instanceof String) {
+                        Draft_6455 draft = drafts.get();
+                        int bytes = 0;
+                        for (Framedata frame : draft.createFrames((String) args[0], false)) {
+                            ByteBuffer encoded = draft.createBinaryFrame(frame);
+                            bytes += encoded.remaining();
+                        }
+                        if (bytes > 0) delivered.increment();
+                        return null;
+                    }
+                    if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                    if (method.getName().equals("equals")) return proxy == args[0];
+                    return null;
+                });
+    }
+}